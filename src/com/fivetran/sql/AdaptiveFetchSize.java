@@ -0,0 +1,257 @@
+package com.fivetran.sql;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * Chooses the fetch size of cursor queries as they run.
+ *
+ * The rows of the first batch are measured, and later batches are sized so each round trip holds about
+ * {@code bytesPerFetch} bytes. Text columns are measured by their length in characters,
+ * and binary columns on the first few rows only, since reading them means decoding them.
+ * If a full batch took longer than {@code maxLatency} to fetch, the following batches shrink;
+ * once round trips are fast again, they grow back towards the memory budget.
+ *
+ * One instance can be shared by every query of a {@link Sql}; it records the sizes it chooses.
+ */
+public class AdaptiveFetchSize {
+    /**
+     * Rough cost of a row and of each column, on top of the column bytes, in the driver's row buffer
+     */
+    private static final int ROW_OVERHEAD = 32, COLUMN_OVERHEAD = 16;
+    /**
+     * Number of rows of the first batch whose binary columns are measured
+     */
+    private static final int BINARY_SAMPLE_ROWS = 16;
+
+    private final int initialFetchSize, minFetchSize, maxFetchSize;
+    private final long bytesPerFetch;
+    private final long maxLatencyNanos;
+
+    private final AtomicInteger lastFetchSize = new AtomicInteger();
+    private final LongAccumulator smallestFetchSize = new LongAccumulator(Math::min, Long.MAX_VALUE);
+    private final LongAccumulator largestFetchSize = new LongAccumulator(Math::max, 0);
+    private final AtomicLong adjustments = new AtomicLong();
+    private final AtomicLong lastBytesPerRow = new AtomicLong();
+
+    public AdaptiveFetchSize(long bytesPerFetch, Duration maxLatency) {
+        this(1000, 10, 100_000, bytesPerFetch, maxLatency);
+    }
+
+    /**
+     * @param initialFetchSize Size of the first batch, which is measured to size the rest
+     * @param minFetchSize Never fetch fewer rows than this per round trip
+     * @param maxFetchSize Never fetch more rows than this per round trip
+     * @param bytesPerFetch Memory budget of one batch
+     * @param maxLatency Shrink batches that take longer than this to fetch
+     */
+    public AdaptiveFetchSize(int initialFetchSize, int minFetchSize, int maxFetchSize, long bytesPerFetch, Duration maxLatency) {
+        if (minFetchSize < 1 || minFetchSize > initialFetchSize || initialFetchSize > maxFetchSize)
+            throw new IllegalArgumentException("Expected 1 <= minFetchSize <= initialFetchSize <= maxFetchSize but found "
+                                               + minFetchSize + ", " + initialFetchSize + ", " + maxFetchSize);
+
+        this.initialFetchSize = initialFetchSize;
+        this.minFetchSize = minFetchSize;
+        this.maxFetchSize = maxFetchSize;
+        this.bytesPerFetch = bytesPerFetch;
+        this.maxLatencyNanos = maxLatency.toNanos();
+    }
+
+    public int initialFetchSize() {
+        return initialFetchSize;
+    }
+
+    /**
+     * The most recently chosen fetch size, of any query
+     */
+    public int lastFetchSize() {
+        return lastFetchSize.get();
+    }
+
+    /**
+     * The smallest fetch size chosen so far, or 0 if there have been no adjustments
+     */
+    public long smallestFetchSize() {
+        long smallest = smallestFetchSize.get();
+
+        return smallest == Long.MAX_VALUE ? 0 : smallest;
+    }
+
+    public long largestFetchSize() {
+        return largestFetchSize.get();
+    }
+
+    /**
+     * Number of times a query's fetch size was changed
+     */
+    public long adjustments() {
+        return adjustments.get();
+    }
+
+    /**
+     * Estimated size of a row in the most recently measured query
+     */
+    public long lastBytesPerRow() {
+        return lastBytesPerRow.get();
+    }
+
+    /**
+     * Start sizing the batches of a cursor whose first batch was fetched with {@code fetchSize}
+     */
+    Tracker track(int fetchSize) {
+        return new Tracker(fetchSize);
+    }
+
+    /**
+     * Advances one result set, timing each round trip and measuring the rows of the first batch
+     */
+    class Tracker {
+        /**
+         * Size of the batch we are reading
+         */
+        private int fetchSize;
+        /**
+         * Rows of the current batch we haven't read yet
+         */
+        private int remaining;
+        /**
+         * Largest fetch size that fits in the memory budget, once we have measured the first batch
+         */
+        private int fitsInMemory;
+        private boolean measuring = true;
+        private long measuredBytes;
+        private long measuredBinaryBytes;
+        private int measuredRows;
+        /**
+         * Which columns are binary, by column index; null until we measure the first row
+         */
+        private boolean[] binary;
+        /**
+         * Duration of the round trip that fetched the current batch, or -1 if we haven't timed it
+         */
+        private long roundTripNanos = -1;
+
+        private Tracker(int fetchSize) {
+            this.fetchSize = fetchSize;
+            this.remaining = fetchSize;
+            this.fitsInMemory = maxFetchSize;
+        }
+
+        /**
+         * Replaces {@code resultSet.next()}
+         */
+        boolean next(ResultSet resultSet) throws SQLException {
+            boolean roundTrip = remaining == 0;
+            long start = roundTrip ? System.nanoTime() : 0;
+            boolean more = resultSet.next();
+
+            if (roundTrip) {
+                remaining = fetchSize;
+                roundTripNanos = System.nanoTime() - start;
+            }
+
+            if (more) {
+                remaining--;
+
+                if (measuring)
+                    measure(resultSet);
+
+                // Only judge the latency of full batches; a short last batch is quick because it's short
+                if (remaining == 0 && roundTripNanos >= 0) {
+                    fetched(resultSet, roundTripNanos);
+                    roundTripNanos = -1;
+                }
+            }
+
+            return more;
+        }
+
+        private void measure(ResultSet row) throws SQLException {
+            if (binary == null)
+                binary = binaryColumns(row.getMetaData());
+
+            boolean sampleBinary = measuredRows < BINARY_SAMPLE_ROWS;
+            long bytes = ROW_OVERHEAD;
+
+            // Text is about one byte per character; decoding binary columns costs as much as reading them, so only sample those
+            for (int i = 1; i < binary.length; i++) {
+                if (binary[i]) {
+                    if (sampleBinary) {
+                        byte[] value = row.getBytes(i);
+
+                        measuredBinaryBytes += COLUMN_OVERHEAD + (value == null ? 0 : value.length);
+                    }
+                }
+                else {
+                    String value = row.getString(i);
+
+                    bytes += COLUMN_OVERHEAD + (value == null ? 0 : value.length());
+                }
+            }
+
+            measuredBytes += bytes;
+            measuredRows++;
+
+            // Once we have seen the whole first batch, size the rest to fit in memory
+            if (remaining == 0) {
+                long sampledRows = Math.min(measuredRows, BINARY_SAMPLE_ROWS);
+                long bytesPerRow = Math.max(1, measuredBytes / measuredRows + measuredBinaryBytes / sampledRows);
+
+                measuring = false;
+                fitsInMemory = clamp(bytesPerFetch / bytesPerRow);
+                lastBytesPerRow.set(bytesPerRow);
+
+                resize(row, fitsInMemory);
+            }
+        }
+
+        /**
+         * A round trip took {@code nanos}; shrink the next batch if that was too slow, or grow it if it was quick
+         */
+        private void fetched(ResultSet resultSet, long nanos) throws SQLException {
+            if (nanos > maxLatencyNanos)
+                resize(resultSet, clamp(fetchSize * maxLatencyNanos / nanos));
+            else if (nanos < maxLatencyNanos / 2 && fetchSize < fitsInMemory)
+                resize(resultSet, Math.min(fitsInMemory, clamp(2L * fetchSize)));
+        }
+
+        private void resize(ResultSet resultSet, int size) throws SQLException {
+            if (size == fetchSize)
+                return;
+
+            resultSet.setFetchSize(size);
+            fetchSize = size;
+
+            lastFetchSize.set(size);
+            smallestFetchSize.accumulate(size);
+            largestFetchSize.accumulate(size);
+            adjustments.incrementAndGet();
+        }
+
+        private boolean[] binaryColumns(ResultSetMetaData metaData) throws SQLException {
+            boolean[] binary = new boolean[metaData.getColumnCount() + 1];
+
+            for (int i = 1; i < binary.length; i++) {
+                switch (metaData.getColumnType(i)) {
+                    case Types.BINARY:
+                    case Types.VARBINARY:
+                    case Types.LONGVARBINARY:
+                    case Types.BLOB:
+                        binary[i] = true;
+                }
+            }
+
+            return binary;
+        }
+
+        private int clamp(long size) {
+            return (int) Math.max(minFetchSize, Math.min(maxFetchSize, size));
+        }
+    }
+}
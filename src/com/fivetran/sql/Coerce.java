@@ -19,35 +19,14 @@ import java.util.*;
 public class Coerce {
     static Object sqlToJava(ResultSet row, int column, Type type) throws SQLException {
         // Primitive types
-        if (type == boolean.class) {
-            boolean result = row.getBoolean(column);
-
-            if (row.wasNull())
-                throw new NullPointerException("Can't encode " + column + "=null as boolean");
-            else
-                return result;
-        } else if (type == int.class) {
-            int result = row.getInt(column);
-
-            if (row.wasNull())
-                throw new NullPointerException("Can't encode " + column + "=null as int");
-            else
-                return result;
-        } else if (type == long.class) {
-            long result = row.getLong(column);
-
-            if (row.wasNull())
-                throw new NullPointerException("Can't encode " + column + "=null as long");
-            else
-                return result;
-        } else if (type == double.class) {
-            double result = row.getDouble(column);
-
-            if (row.wasNull())
-                throw new NullPointerException("Can't encode " + column + "=null as double");
-            else
-                return result;
-        }
+        if (type == boolean.class)
+            return getBoolean(row, column);
+        else if (type == int.class)
+            return getInt(row, column);
+        else if (type == long.class)
+            return getLong(row, column);
+        else if (type == double.class)
+            return getDouble(row, column);
         // Reference types
         else if (type == Boolean.class)
             return (Boolean) row.getObject(column);
@@ -111,6 +90,127 @@ public class Coerce {
         // TODO arrays
     }
 
+    /**
+     * Decide once how to read {@code column} as {@code type}, using {@code metaData} instead of inspecting every row.
+     * The reader behaves like {@link #sqlToJava(ResultSet, int, Type)}.
+     */
+    static ColumnReader sqlToJava(ResultSetMetaData metaData, int column, Type type) throws SQLException {
+        // Primitive types
+        if (type == boolean.class)
+            return row -> getBoolean(row, column);
+        else if (type == int.class)
+            return row -> getInt(row, column);
+        else if (type == long.class)
+            return row -> getLong(row, column);
+        else if (type == double.class)
+            return row -> getDouble(row, column);
+        // Reference types
+        else if (type == Boolean.class)
+            return row -> (Boolean) row.getObject(column);
+        else if (type == Integer.class)
+            return row -> (Integer) row.getObject(column);
+        else if (type == Long.class)
+            return row -> (Long) row.getObject(column);
+        else if (type == Double.class)
+            return row -> (Double) row.getObject(column);
+        else if (type == String.class)
+            return row -> row.getString(column);
+        else if (type == BigDecimal.class)
+            return row -> row.getBigDecimal(column);
+        else if (type == Instant.class)
+            return row -> {
+                Timestamp timestamp = row.getTimestamp(column);
+
+                return timestamp == null ? null : timestamp.toInstant();
+            };
+        else if (type == LocalDate.class)
+            return row -> row.getDate(column).toLocalDate();
+        // If column is json, delegate to Jackson
+        else if (isJson(metaData, column)) {
+            Resolved resolved = new Resolved(type);
+
+            return new ColumnReader.Split(row -> row.getString(column), text -> jsonToJava((String) text, resolved));
+        }
+        // Coerce arrays to list
+        else if (isList(type)) {
+            Type element = listType(type);
+
+            if (metaData.getColumnType(column) == Types.ARRAY)
+                return row -> arrayToList(row.getArray(column), element);
+            else
+                throw new SqlMappingException("Don't know how to convert " + metaData.getColumnTypeName(column) + " to List<" + element.getTypeName() + ">");
+        }
+        else if (type == OptionalBoolean.class)
+            return row -> {
+                Boolean value = (Boolean) row.getObject(column);
+
+                if (value == null)
+                    return OptionalBoolean.ANY;
+                else
+                    return value ? OptionalBoolean.TRUE : OptionalBoolean.FALSE;
+            };
+        else if (type == OptionalInt.class)
+            return row -> {
+                Integer value = (Integer) row.getObject(column);
+
+                return value == null ? OptionalInt.empty() : OptionalInt.of(value);
+            };
+        else if (type == OptionalLong.class)
+            return row -> {
+                Long value = (Long) row.getObject(column);
+
+                return value == null ? OptionalLong.empty() : OptionalLong.of(value);
+            };
+        else if (type == OptionalDouble.class)
+            return row -> {
+                Double value = (Double) row.getObject(column);
+
+                return value == null ? OptionalDouble.empty() : OptionalDouble.of(value);
+            };
+        else if (isOptional(type))
+            return row -> Optional.ofNullable(row.getObject(column));
+        else
+            throw new IllegalArgumentException("Don't know how to create " + type);
+    }
+
+    // Typed getters for primitives, which can't represent null
+
+    static boolean getBoolean(ResultSet row, int column) throws SQLException {
+        boolean result = row.getBoolean(column);
+
+        if (row.wasNull())
+            throw new NullPointerException("Can't encode " + column + "=null as boolean");
+        else
+            return result;
+    }
+
+    static int getInt(ResultSet row, int column) throws SQLException {
+        int result = row.getInt(column);
+
+        if (row.wasNull())
+            throw new NullPointerException("Can't encode " + column + "=null as int");
+        else
+            return result;
+    }
+
+    static long getLong(ResultSet row, int column) throws SQLException {
+        long result = row.getLong(column);
+
+        if (row.wasNull())
+            throw new NullPointerException("Can't encode " + column + "=null as long");
+        else
+            return result;
+    }
+
+    static double getDouble(ResultSet row, int column) throws SQLException {
+        double result = row.getDouble(column);
+
+        if (row.wasNull())
+            throw new NullPointerException("Can't encode " + column + "=null as double");
+        else
+            return result;
+    }
+
     private static Object sqlToOptional(ResultSet row, int column, Type type) throws SQLException {
         Object value = row.getObject(column);
 
@@ -159,15 +259,8 @@ public class Coerce {
         int columnType = metaData.getColumnType(column);
 
         // If column is an array, coerce each element
-        if (columnType == java.sql.Types.ARRAY) {
-            ResultSet array = row.getArray(column).getResultSet();
-            ArrayList acc = Lists.newArrayList();
-
-            while (array.next())
-                acc.add(sqlToJava(array, 2, element));
-
-            return acc;
-        }
+        if (columnType == java.sql.Types.ARRAY)
+            return arrayToList(row.getArray(column), element);
         else {
             String foundType = metaData.getColumnTypeName(column);
             String desiredType = "List<" + element.getTypeName() + ">";
@@ -176,8 +269,24 @@ public class Coerce {
         }
     }
 
+    private static List arrayToList(Array sql, Type element) throws SQLException {
+        if (sql == null)
+            return null;
+
+        ResultSet array = sql.getResultSet();
+        ArrayList acc = Lists.newArrayList();
+
+        while (array.next())
+            acc.add(sqlToJava(array, 2, element));
+
+        return acc;
+    }
+
     private static boolean isJson(ResultSet row, int column) throws SQLException {
-        ResultSetMetaData metaData = row.getMetaData();
+        return isJson(row.getMetaData(), column);
+    }
+
+    static boolean isJson(ResultSetMetaData metaData, int column) throws SQLException {
         int columnType = metaData.getColumnType(column);
 
         return columnType == Types.OTHER && metaData.getColumnTypeName(column).equals("json");
@@ -198,13 +307,19 @@ public class Coerce {
 
     // Convert json to Map<String, T>
     private static Object sqlToJson(ResultSet row, int column, Type element) throws SQLException {
-        String text = row.getString(column);
+        return sqlToJson(row, column, new Resolved(element));
+    }
 
+    private static Object sqlToJson(ResultSet row, int column, Resolved element) throws SQLException {
+        return jsonToJava(row.getString(column), element);
+    }
+
+    private static Object jsonToJava(String text, Resolved element) throws SqlMappingException {
         try {
             if (text == null)
                 return null;
             else
-                return Config.JSON.readValue(text, new Resolved(element));
+                return Config.JSON.readValue(text, element);
         } catch (IOException e) {
             throw new SqlMappingException(e);
         }
@@ -212,6 +327,34 @@ public class Coerce {
 
 
 
+    /**
+     * Converts a Java value to a parameter of one particular SQL type
+     */
+    @FunctionalInterface
+    public interface JavaToSql {
+        Object apply(Connection connection, Object value) throws SQLException;
+    }
+
+    /**
+     * Decide once how to convert values for a parameter of type {@code typeId} / {@code type},
+     * so binding each value doesn't have to repeat the type checks in {@link #javaToSql(Connection, Object, int, String)}
+     */
+    public static JavaToSql javaToSql(int typeId, String type) {
+        if (typeId == Types.TIMESTAMP || typeId == Types.TIMESTAMP_WITH_TIMEZONE)
+            return (connection, value) -> javaToTimestamp(value);
+        else if (typeId == Types.DATE)
+            return (connection, value) -> javaToDate(value);
+        else if (type.equals("json"))
+            return (connection, value) -> javaToJson(value);
+        else if (type.charAt(0) == '_') {
+            String elementType = type.substring(1);
+
+            return (connection, value) -> javaToArray(connection, value, typeId, elementType);
+        }
+        else
+            return (connection, value) -> value;
+    }
+
     // TODO this should really use sql.Types integers, and fall back to strings
     public static Object javaToSql(Connection connection, Object value, int typeId, String type) throws SQLException {
         if (typeId == Types.TIMESTAMP || typeId == Types.TIMESTAMP_WITH_TIMEZONE)
@@ -219,23 +362,27 @@ public class Coerce {
         else if (typeId == Types.DATE)
             return javaToDate(value);
         else if (type.equals("json"))
-            try {
-                String serialized = Config.JSON.writeValueAsString(value); // TODO PGobject
-                PGobject json = new PGobject();
-
-                json.setType("json");
-                json.setValue(serialized);
-
-                return json;
-            } catch (JsonProcessingException e) {
-                throw new RuntimeException(e);
-            }
+            return javaToJson(value);
         else if (type.charAt(0) == '_')
             return javaToArray(connection, value, typeId, type.substring(1));
         else
             return value;
     }
 
+    private static PGobject javaToJson(Object value) throws SQLException {
+        try {
+            String serialized = Config.JSON.writeValueAsString(value); // TODO PGobject
+            PGobject json = new PGobject();
+
+            json.setType("json");
+            json.setValue(serialized);
+
+            return json;
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     private static Date javaToDate(Object value) throws SqlMappingException {
         if (value instanceof LocalDate)
             return Date.valueOf((LocalDate) value);
@@ -0,0 +1,337 @@
+package com.fivetran.sql;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Arrays;
+
+/**
+ * Up to {@code capacity} rows of a query, stored by column: an array of primitives for each numeric column,
+ * and one buffer of characters with an offset per row for every other column, each with a bitmap of nulls.
+ *
+ * Summing a column or grouping by it reads one array from front to back, instead of one object per row.
+ * A batch is refilled with the next rows each time it's read, so hold on to values, not to the batch.
+ *
+ * SQL type                           Column
+ * ----------                         ------------
+ * bigint                             {@link Longs}
+ * integer, smallint                  {@link Ints}
+ * double precision, real             {@link Doubles}
+ * anything else                      {@link Text}, as getString reads it
+ */
+public class ColumnBatch {
+    private final String[] names;
+    private final Column[] columns;
+    private final int capacity;
+    private int size = 0;
+
+    ColumnBatch(ResultSetMetaData metaData, int capacity) throws SQLException {
+        int count = metaData.getColumnCount();
+
+        this.names = new String[count];
+        this.columns = new Column[count];
+        this.capacity = capacity;
+
+        for (int i = 0; i < count; i++) {
+            names[i] = metaData.getColumnLabel(i + 1);
+            columns[i] = column(metaData.getColumnType(i + 1), capacity);
+        }
+    }
+
+    private static Column column(int type, int capacity) {
+        switch (type) {
+            case Types.BIGINT:
+                return new Longs(capacity);
+            case Types.INTEGER:
+            case Types.SMALLINT:
+            case Types.TINYINT:
+                return new Ints(capacity);
+            case Types.DOUBLE:
+            case Types.FLOAT:
+            case Types.REAL:
+                return new Doubles(capacity);
+            default:
+                return new Text(capacity);
+        }
+    }
+
+    /**
+     * The number of rows in this batch
+     */
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public int columnCount() {
+        return columns.length;
+    }
+
+    /**
+     * @param column Counting from 0, unlike JDBC
+     */
+    public String name(int column) {
+        return names[column];
+    }
+
+    /**
+     * The column named {@code name}, counting from 0, or -1 if there isn't one
+     */
+    public int indexOf(String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name))
+                return i;
+        }
+
+        return -1;
+    }
+
+    public Column column(int column) {
+        return columns[column];
+    }
+
+    public Longs longs(int column) {
+        return (Longs) columns[column];
+    }
+
+    public Ints ints(int column) {
+        return (Ints) columns[column];
+    }
+
+    public Doubles doubles(int column) {
+        return (Doubles) columns[column];
+    }
+
+    public Text text(int column) {
+        return (Text) columns[column];
+    }
+
+    /**
+     * Empty the batch, keeping its arrays for the next rows
+     */
+    void clear() {
+        for (Column column : columns)
+            column.clear();
+
+        size = 0;
+    }
+
+    boolean full() {
+        return size == capacity;
+    }
+
+    /**
+     * Append the current row of resultSet
+     */
+    void read(ResultSet resultSet) throws SQLException {
+        for (int i = 0; i < columns.length; i++)
+            columns[i].read(resultSet, i + 1, size);
+
+        size++;
+    }
+
+    /**
+     * The values of one column, and which of them are null
+     */
+    public static abstract class Column {
+        private final long[] nulls;
+
+        Column(int capacity) {
+            nulls = new long[(capacity + 63) >>> 6];
+        }
+
+        public boolean isNull(int row) {
+            return (nulls[row >>> 6] & (1L << row)) != 0;
+        }
+
+        void setNull(int row) {
+            nulls[row >>> 6] |= 1L << row;
+        }
+
+        void clear() {
+            Arrays.fill(nulls, 0);
+        }
+
+        abstract void read(ResultSet resultSet, int column, int row) throws SQLException;
+    }
+
+    public static class Longs extends Column {
+        private final long[] values;
+
+        Longs(int capacity) {
+            super(capacity);
+
+            values = new long[capacity];
+        }
+
+        /**
+         * 0 where the value is null
+         */
+        public long get(int row) {
+            return values[row];
+        }
+
+        /**
+         * The values of this column; only the first {@link ColumnBatch#size()} belong to this batch
+         */
+        public long[] values() {
+            return values;
+        }
+
+        @Override
+        void read(ResultSet resultSet, int column, int row) throws SQLException {
+            values[row] = resultSet.getLong(column);
+
+            if (resultSet.wasNull())
+                setNull(row);
+        }
+    }
+
+    public static class Ints extends Column {
+        private final int[] values;
+
+        Ints(int capacity) {
+            super(capacity);
+
+            values = new int[capacity];
+        }
+
+        /**
+         * 0 where the value is null
+         */
+        public int get(int row) {
+            return values[row];
+        }
+
+        /**
+         * The values of this column; only the first {@link ColumnBatch#size()} belong to this batch
+         */
+        public int[] values() {
+            return values;
+        }
+
+        @Override
+        void read(ResultSet resultSet, int column, int row) throws SQLException {
+            values[row] = resultSet.getInt(column);
+
+            if (resultSet.wasNull())
+                setNull(row);
+        }
+    }
+
+    public static class Doubles extends Column {
+        private final double[] values;
+
+        Doubles(int capacity) {
+            super(capacity);
+
+            values = new double[capacity];
+        }
+
+        /**
+         * 0 where the value is null
+         */
+        public double get(int row) {
+            return values[row];
+        }
+
+        /**
+         * The values of this column; only the first {@link ColumnBatch#size()} belong to this batch
+         */
+        public double[] values() {
+            return values;
+        }
+
+        @Override
+        void read(ResultSet resultSet, int column, int row) throws SQLException {
+            values[row] = resultSet.getDouble(column);
+
+            if (resultSet.wasNull())
+                setNull(row);
+        }
+    }
+
+    /**
+     * The text of every row, one after another in one buffer; row i is {@code chars[offset(i), offset(i + 1))}
+     */
+    public static class Text extends Column {
+        private final int[] offsets;
+        private char[] chars = new char[1024];
+
+        Text(int capacity) {
+            super(capacity);
+
+            offsets = new int[capacity + 1];
+        }
+
+        /**
+         * A new String of row, or null
+         */
+        public String get(int row) {
+            if (isNull(row))
+                return null;
+
+            return new String(chars, offsets[row], length(row));
+        }
+
+        public int offset(int row) {
+            return offsets[row];
+        }
+
+        /**
+         * 0 where the value is null
+         */
+        public int length(int row) {
+            return offsets[row + 1] - offsets[row];
+        }
+
+        /**
+         * The characters of every row; only up to {@code offset(size())} belong to this batch
+         */
+        public char[] chars() {
+            return chars;
+        }
+
+        /**
+         * Compare row to value without making a String
+         */
+        public boolean equals(int row, CharSequence value) {
+            if (isNull(row) || length(row) != value.length())
+                return false;
+
+            int offset = offsets[row];
+
+            for (int i = 0; i < value.length(); i++) {
+                if (chars[offset + i] != value.charAt(i))
+                    return false;
+            }
+
+            return true;
+        }
+
+        @Override
+        void read(ResultSet resultSet, int column, int row) throws SQLException {
+            String value = resultSet.getString(column);
+            int start = offsets[row];
+
+            if (value == null) {
+                setNull(row);
+                offsets[row + 1] = start;
+
+                return;
+            }
+
+            int end = start + value.length();
+
+            if (end > chars.length)
+                chars = Arrays.copyOf(chars, Math.max(end, chars.length * 2));
+
+            value.getChars(0, value.length(), chars, start);
+            offsets[row + 1] = end;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.fivetran.sql;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Reads a ResultSet into one {@link ColumnBatch} at a time, refilling the same batch for each element
+ */
+class ColumnBatches extends RowCursor implements Spliterator<ColumnBatch> {
+    private final ColumnBatch batch;
+
+    ColumnBatches(ResultSet resultSet, AdaptiveFetchSize.Tracker fetchSizes, int batchSize) throws SQLException {
+        super(resultSet, fetchSizes);
+
+        this.batch = new ColumnBatch(resultSet.getMetaData(), batchSize);
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super ColumnBatch> action) {
+        batch.clear();
+
+        while (!batch.full() && advance()) {
+            try {
+                batch.read(resultSet);
+            } catch (SQLException e) {
+                throw failed(e);
+            }
+        }
+
+        if (batch.size() == 0)
+            return false;
+
+        action.accept(batch);
+
+        return true;
+    }
+
+    @Override
+    public Spliterator<ColumnBatch> trySplit() {
+        return null;
+    }
+
+    @Override
+    public long estimateSize() {
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | NONNULL;
+    }
+}
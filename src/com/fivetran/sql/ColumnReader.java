@@ -0,0 +1,39 @@
+package com.fivetran.sql;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Reads one column of the current row, with the conversion for that column already decided
+ */
+@FunctionalInterface
+public interface ColumnReader {
+    Object read(ResultSet row) throws SQLException;
+
+    /**
+     * Converts a value that was copied out of a row, without the row
+     */
+    @FunctionalInterface
+    interface Decoder {
+        Object decode(Object copied) throws SQLException;
+    }
+
+    /**
+     * A reader whose expensive part doesn't need the ResultSet, like parsing json:
+     * {@code copy} takes the raw value out of the row, and {@code decoder} converts it, possibly on another thread.
+     */
+    final class Split implements ColumnReader {
+        final ColumnReader copy;
+        final Decoder decoder;
+
+        Split(ColumnReader copy, Decoder decoder) {
+            this.copy = copy;
+            this.decoder = decoder;
+        }
+
+        @Override
+        public Object read(ResultSet row) throws SQLException {
+            return decoder.decode(copy.read(row));
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.fivetran.sql;
+
+/**
+ * Formats of {@code COPY ... TO STDOUT}
+ */
+public enum CopyFormat {
+    TEXT("FORMAT text"),
+    CSV("FORMAT csv"),
+    /**
+     * CSV with a first line of column names
+     */
+    CSV_HEADER("FORMAT csv, HEADER true"),
+    BINARY("FORMAT binary");
+
+    final String options;
+
+    CopyFormat(String options) {
+        this.options = options;
+    }
+}
@@ -0,0 +1,19 @@
+package com.fivetran.sql;
+
+/**
+ * What a COPY transferred
+ */
+public class CopyResult {
+    public final long rows;
+    public final long bytes;
+
+    public CopyResult(long rows, long bytes) {
+        this.rows = rows;
+        this.bytes = bytes;
+    }
+
+    @Override
+    public String toString() {
+        return rows + " rows, " + bytes + " bytes";
+    }
+}
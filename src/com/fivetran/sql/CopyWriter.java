@@ -0,0 +1,162 @@
+package com.fivetran.sql;
+
+import org.postgresql.copy.CopyIn;
+import org.postgresql.util.PGobject;
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+
+/**
+ * Encodes rows in the text format of COPY FROM STDIN, into a fixed-size buffer that is sent to the server each time it fills up,
+ * so loading a table never holds more than one buffer of rows in memory.
+ *
+ * Values are the SQL values produced by {@link Coerce#javaToSql}: strings, numbers, timestamps, dates, json and arrays.
+ * Timestamps are written the way the driver binds them to a statement: wall-clock time in timeZone, with its offset,
+ * so a {@code timestamp without time zone} column gets the same value from COPY as from an INSERT.
+ */
+class CopyWriter {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final CopyIn copy;
+    private final ZoneId timeZone;
+    private final byte[] buffer;
+    private int position = 0;
+
+    /**
+     * @param timeZone The zone the driver binds timestamps in, which is the JVM's default zone
+     */
+    CopyWriter(CopyIn copy, int bufferSize, ZoneId timeZone) {
+        this.copy = copy;
+        this.timeZone = timeZone;
+        this.buffer = new byte[bufferSize];
+    }
+
+    void row(Object[] values) throws SQLException {
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0)
+                ascii('\t');
+
+            value(values[i]);
+        }
+
+        ascii('\n');
+    }
+
+    /**
+     * Send what's left in the buffer and end the COPY
+     *
+     * @return The number of rows the server loaded
+     */
+    long finish() throws SQLException {
+        flush();
+
+        return copy.endCopy();
+    }
+
+    private void value(Object value) throws SQLException {
+        if (value instanceof PGobject)
+            value = ((PGobject) value).getValue();
+
+        if (value == null) {
+            ascii('\\');
+            ascii('N');
+        }
+        else if (value instanceof String)
+            text((String) value);
+        else if (value instanceof Boolean)
+            ascii((Boolean) value ? 't' : 'f');
+        else if (value instanceof Timestamp)
+            text(OffsetDateTime.ofInstant(((Timestamp) value).toInstant(), timeZone).toString());
+        else if (value instanceof byte[])
+            bytea((byte[]) value);
+        else
+            // Numbers and dates, and the driver's arrays, which print as array literals
+            text(value.toString());
+    }
+
+    /**
+     * bytea in hex format, {@code \x0a1b}, with the backslash escaped for COPY
+     */
+    private void bytea(byte[] bytes) throws SQLException {
+        ascii('\\');
+        ascii('\\');
+        ascii('x');
+
+        for (byte b : bytes) {
+            ascii(HEX[(b >> 4) & 0xf]);
+            ascii(HEX[b & 0xf]);
+        }
+    }
+
+    /**
+     * Write text as UTF-8, escaping the characters that COPY treats specially
+     */
+    private void text(String text) throws SQLException {
+        int length = text.length();
+
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+
+            if (position + 4 > buffer.length)
+                flush();
+
+            switch (c) {
+                case '\\':
+                    buffer[position++] = '\\';
+                    buffer[position++] = '\\';
+                    break;
+                case '\n':
+                    buffer[position++] = '\\';
+                    buffer[position++] = 'n';
+                    break;
+                case '\r':
+                    buffer[position++] = '\\';
+                    buffer[position++] = 'r';
+                    break;
+                case '\t':
+                    buffer[position++] = '\\';
+                    buffer[position++] = 't';
+                    break;
+                default:
+                    if (c < 0x80)
+                        buffer[position++] = (byte) c;
+                    else if (c < 0x800) {
+                        buffer[position++] = (byte) (0xc0 | (c >> 6));
+                        buffer[position++] = (byte) (0x80 | (c & 0x3f));
+                    }
+                    else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                        int codePoint = Character.toCodePoint(c, text.charAt(++i));
+
+                        buffer[position++] = (byte) (0xf0 | (codePoint >> 18));
+                        buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                        buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                        buffer[position++] = (byte) (0x80 | (codePoint & 0x3f));
+                    }
+                    else if (Character.isSurrogate(c))
+                        // Like String.getBytes(), replace a broken surrogate pair
+                        buffer[position++] = '?';
+                    else {
+                        buffer[position++] = (byte) (0xe0 | (c >> 12));
+                        buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                        buffer[position++] = (byte) (0x80 | (c & 0x3f));
+                    }
+            }
+        }
+    }
+
+    private void ascii(char c) throws SQLException {
+        if (position == buffer.length)
+            flush();
+
+        buffer[position++] = (byte) c;
+    }
+
+    private void flush() throws SQLException {
+        if (position > 0) {
+            copy.writeToCopy(buffer, 0, position);
+            position = 0;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.fivetran.sql;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the public fields of T as the columns of a row, for writing T to a table.
+ * Each field is the column named by its {@link SqlAttribute}, or by the field name.
+ */
+public class FromJavaPojo<T> {
+    private final String[] columns;
+    /**
+     * (Object)Object getter of each column
+     */
+    private final MethodHandle[] getters;
+
+    public FromJavaPojo(Class<T> javaType) {
+        List<String> columns = new ArrayList<>();
+        List<MethodHandle> getters = new ArrayList<>();
+
+        for (Field field : javaType.getFields()) {
+            if (Modifier.isStatic(field.getModifiers()))
+                continue;
+
+            SqlAttribute attribute = field.getAnnotation(SqlAttribute.class);
+            boolean named = attribute != null && !attribute.value().equals(SqlAttribute.USE_DEFAULT_NAME);
+
+            columns.add(named ? attribute.value() : field.getName());
+
+            try {
+                getters.add(MethodHandles.publicLookup()
+                                         .unreflectGetter(field)
+                                         .asType(MethodType.methodType(Object.class, Object.class)));
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        if (columns.isEmpty())
+            throw new IllegalArgumentException(javaType.getName() + " has no public fields to write as columns");
+
+        this.columns = columns.toArray(new String[columns.size()]);
+        this.getters = getters.toArray(new MethodHandle[getters.size()]);
+    }
+
+    public String[] columns() {
+        return columns.clone();
+    }
+
+    public Object[] values(T row) throws SQLException {
+        Object[] values = new Object[getters.length];
+
+        try {
+            for (int i = 0; i < getters.length; i++)
+                values[i] = (Object) getters[i].invokeExact((Object) row);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new SqlMappingException(new RuntimeException(e));
+        }
+
+        return values;
+    }
+}
@@ -0,0 +1,86 @@
+package com.fivetran.sql;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Rewrites a single-row {@code INSERT INTO t (a, b) VALUES (?, ?)} into {@code INSERT INTO t (a, b) VALUES (?, ?), (?, ?), ...},
+ * so a batch can insert many rows per statement instead of binding and executing each row.
+ */
+class InsertRewrite {
+    /**
+     * The Postgres protocol counts bind parameters with a 16-bit integer
+     */
+    static final int MAX_PARAMETERS = Short.MAX_VALUE;
+    /**
+     * Past this, bigger statements don't get faster, they just take longer to parse and plan
+     */
+    static final int MAX_ROWS = 1024;
+
+    private static final String IDENTIFIER = "(?:\"[^\"]+\"|[A-Za-z_][A-Za-z0-9_$]*)";
+    private static final String TABLE = IDENTIFIER + "(?:\\s*\\.\\s*" + IDENTIFIER + ")?";
+    private static final String COLUMNS = "\\(\\s*" + IDENTIFIER + "(?:\\s*,\\s*" + IDENTIFIER + ")*\\s*\\)";
+    private static final String ROW = "\\(\\s*\\?(?:\\s*,\\s*\\?)*\\s*\\)";
+    /**
+     * Only a table, optionally its columns, and one row of bare placeholders, so there is nothing we could copy by mistake,
+     * like an ON CONFLICT clause, a comment, a string, a cast or a default
+     */
+    private static final Pattern INSERT_VALUES = Pattern.compile("^\\s*(INSERT\\s+INTO\\s+" + TABLE + "(?:\\s*" + COLUMNS + "\\s*|\\s+)VALUES)\\s*(" + ROW + ")\\s*;?\\s*$",
+                                                                 Pattern.CASE_INSENSITIVE);
+
+    private final String prefix;
+    private final String row;
+    private final int parametersPerRow;
+    private final int maxRows;
+
+    private InsertRewrite(String prefix, String row, int parametersPerRow) {
+        this.prefix = prefix;
+        this.row = row;
+        this.parametersPerRow = parametersPerRow;
+
+        int fits = parametersPerRow == 0 ? MAX_ROWS : Math.min(MAX_ROWS, MAX_PARAMETERS / parametersPerRow);
+
+        this.maxRows = Integer.highestOneBit(Math.max(1, fits));
+    }
+
+    /**
+     * The rewrite of {@code sql}, or null if it isn't a plain INSERT of one row of placeholders, like {@code VALUES (?, ?)}.
+     * Anything else is refused, even if it could be repeated, like casts, literals, RETURNING or ON CONFLICT.
+     */
+    static InsertRewrite of(String sql) {
+        Matcher matcher = INSERT_VALUES.matcher(sql);
+
+        if (!matcher.matches())
+            return null;
+
+        String row = matcher.group(2);
+
+        return new InsertRewrite(matcher.group(1), row, (int) row.chars().filter(c -> c == '?').count());
+    }
+
+    int parametersPerRow() {
+        return parametersPerRow;
+    }
+
+    /**
+     * How many of {@code remaining} rows to insert with the next statement.
+     * Always a power of two, so a batch of any size only needs a few different statements.
+     */
+    int rowsPerStatement(int remaining) {
+        return Math.min(maxRows, Integer.highestOneBit(remaining));
+    }
+
+    /**
+     * The statement that inserts {@code rows} rows
+     */
+    String sql(int rows) {
+        StringBuilder sql = new StringBuilder(prefix.length() + rows * (row.length() + 2));
+
+        sql.append(prefix).append(' ').append(row);
+
+        for (int i = 1; i < rows; i++)
+            sql.append(", ").append(row);
+
+        return sql.toString();
+    }
+}
@@ -0,0 +1,47 @@
+package com.fivetran.sql;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * A connection that belongs to someone else, like a transaction, lent out to code that closes its connections when it's done.
+ * Closing the lent connection calls {@code giveBack} once, instead of closing the connection; everything else goes to the connection.
+ */
+class LentConnection {
+    @FunctionalInterface
+    interface GiveBack {
+        void close(Connection connection) throws SQLException;
+    }
+
+    static Connection lend(Connection connection, GiveBack giveBack) {
+        boolean[] returned = {false};
+
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class}, (proxy, method, arguments) -> {
+            switch (method.getName()) {
+                case "close":
+                    if (!returned[0]) {
+                        returned[0] = true;
+                        giveBack.close(connection);
+                    }
+
+                    return null;
+                case "isClosed":
+                    return returned[0] || connection.isClosed();
+                case "equals":
+                    return proxy == arguments[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Lent " + connection;
+                default:
+                    try {
+                        return method.invoke(connection, arguments);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+            }
+        });
+    }
+}
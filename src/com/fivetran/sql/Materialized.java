@@ -0,0 +1,538 @@
+package com.fivetran.sql;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * The rows of a query, read once and kept outside the heap, so they can be streamed as many times as you like without running the query again.
+ *
+ * Each row is stored as the values {@link ToJava.Staged#copy} took out of the ResultSet, encoded by {@link RowCodec}
+ * in chunks of about {@link #CHUNK_SIZE} bytes, and is converted to T again each time it's read.
+ * Chunks are direct buffers until they reach the memory budget, see {@link Sql#withMaterializeBudget(long)};
+ * the rest are written to a temporary file and mapped back in a few regions of up to 2 GB, so the OS pages them in and out as they're read.
+ * Nothing changes after the rows are read, so any number of threads can stream at once,
+ * and a parallel stream splits the rows by chunk.
+ *
+ * Values that can't be encoded, like json trees, stay on the heap and are shared by every stream, so don't modify them.
+ *
+ * Close the rows to free their memory and unmap the file right away, instead of whenever the garbage collector gets to them.
+ * Streams that are reading when the rows are closed finish the row, or the chunk, they are on, and the memory is freed after that;
+ * then they fail with IllegalStateException, like streams started after closing.
+ */
+public class Materialized<T> implements AutoCloseable {
+    static final int CHUNK_SIZE = 1 << 20;
+    /**
+     * The most a single mapping can hold
+     */
+    private static final long MAX_REGION_SIZE = Integer.MAX_VALUE;
+
+    /**
+     * Frees a direct or mapped buffer now; see {@link #freeBuffer()}
+     */
+    private static final Consumer<ByteBuffer> FREE = freeBuffer();
+
+    /**
+     * Finishes converting copied values to T, like {@link ToJava.Staged#convert}
+     */
+    @FunctionalInterface
+    interface Convert<T> {
+        T convert(Object[] copied) throws SQLException;
+    }
+
+    private final List<ByteBuffer> chunks;
+    /**
+     * The buffers we allocated or mapped, which chunks are views of
+     */
+    private final List<ByteBuffer> owned;
+    private final int[] rowsPerChunk;
+    private final List<Object> heap;
+    private final Convert<T> convert;
+    private final long rows;
+    private final long bytes;
+    private final long spilled;
+    private volatile boolean closed = false;
+    /**
+     * Reads in progress, which the buffers can't be freed under
+     */
+    private final AtomicInteger readers = new AtomicInteger();
+    private final AtomicBoolean freed = new AtomicBoolean();
+
+    private Materialized(List<ByteBuffer> chunks, List<ByteBuffer> owned, int[] rowsPerChunk, List<Object> heap, Convert<T> convert, long rows, long bytes, long spilled) {
+        this.chunks = chunks;
+        this.owned = owned;
+        this.rowsPerChunk = rowsPerChunk;
+        this.heap = heap;
+        this.convert = convert;
+        this.rows = rows;
+        this.bytes = bytes;
+        this.spilled = spilled;
+    }
+
+    /**
+     * Encode every row of copies, in memory until the chunks add up to {@code memoryBudget} bytes, and in a temporary file after that
+     */
+    static <T> Materialized<T> of(Iterator<Object[]> copies, Convert<T> convert, long memoryBudget) throws IOException {
+        List<Object> heap = new ArrayList<>();
+        ByteBuffer scratch = ByteBuffer.allocate(4096);
+
+        try (Chunker chunker = new Chunker(memoryBudget)) {
+            while (copies.hasNext()) {
+                Object[] row = copies.next();
+
+                // Encode the row on the heap first, so we know how big it is before we pick a chunk
+                while (true) {
+                    int heapSize = heap.size();
+
+                    try {
+                        scratch.clear();
+                        RowCodec.encodeRow(row, scratch, heap);
+
+                        break;
+                    } catch (BufferOverflowException e) {
+                        heap.subList(heapSize, heap.size()).clear();
+                        scratch = ByteBuffer.allocate(scratch.capacity() * 2);
+                    }
+                }
+
+                scratch.flip();
+                chunker.add(scratch);
+            }
+
+            chunker.seal();
+            chunker.mapSpilled();
+
+            int[] counts = chunker.rowsPerChunk.stream().mapToInt(Integer::intValue).toArray();
+
+            chunker.done = true;
+
+            return new Materialized<>(Collections.unmodifiableList(chunker.chunks),
+                                      chunker.owned,
+                                      counts,
+                                      Collections.unmodifiableList(heap),
+                                      convert,
+                                      chunker.rows,
+                                      chunker.bytes,
+                                      chunker.spilled);
+        }
+    }
+
+    /**
+     * Packs encoded rows into chunks: direct buffers while they fit in the budget,
+     * then parts of a temporary file, each written from one reused buffer.
+     * Once every row is written, the file is mapped read-only in as few regions as we can, and each spilled chunk is a slice of one,
+     * so a big result doesn't use up the process's mappings.
+     */
+    private static class Chunker implements AutoCloseable {
+        final List<ByteBuffer> chunks = new ArrayList<>();
+        final List<ByteBuffer> owned = new ArrayList<>();
+        final List<Integer> rowsPerChunk = new ArrayList<>();
+        long rows = 0, bytes = 0, spilled = 0;
+        /**
+         * Set once the chunks belong to a Materialized, which frees them; until then, we free them if we fail
+         */
+        boolean done = false;
+
+        private final long memoryBudget;
+        private long inMemory = 0;
+        private ByteBuffer chunk;
+        private int rowsInChunk = 0;
+        /**
+         * Null until we run out of budget
+         */
+        private FileChannel file;
+        private ByteBuffer spillBuffer;
+        /**
+         * Position and size of each chunk in the file, until we map it
+         */
+        private final List<long[]> spilledChunks = new ArrayList<>();
+
+        Chunker(long memoryBudget) {
+            this.memoryBudget = memoryBudget;
+        }
+
+        void add(ByteBuffer row) throws IOException {
+            if (chunk == null || chunk.remaining() < row.remaining()) {
+                seal();
+
+                chunk = allocate(Math.max(CHUNK_SIZE, row.remaining()));
+            }
+
+            bytes += row.remaining();
+            chunk.put(row);
+            rowsInChunk++;
+            rows++;
+        }
+
+        private ByteBuffer allocate(int size) throws IOException {
+            if (file == null && inMemory + size <= memoryBudget) {
+                ByteBuffer direct = ByteBuffer.allocateDirect(size);
+
+                inMemory += size;
+                owned.add(direct);
+
+                return direct;
+            }
+
+            if (file == null) {
+                Path path = Files.createTempFile("materialized", ".rows");
+
+                // Deleted when we close it; on Linux the mapped chunks stay readable after that
+                file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+            }
+
+            if (spillBuffer == null || spillBuffer.capacity() < size)
+                spillBuffer = ByteBuffer.allocateDirect(size);
+
+            spillBuffer.clear();
+            spillBuffer.limit(size);
+
+            return spillBuffer;
+        }
+
+        void seal() throws IOException {
+            if (chunk == null)
+                return;
+
+            chunk.flip();
+
+            if (chunk == spillBuffer) {
+                long position = spilled;
+                long size = chunk.remaining();
+
+                while (chunk.hasRemaining())
+                    spilled += file.write(chunk, spilled);
+
+                spilledChunks.add(new long[]{position, size});
+            }
+            else
+                chunks.add(chunk.asReadOnlyBuffer());
+
+            rowsPerChunk.add(rowsInChunk);
+            chunk = null;
+            rowsInChunk = 0;
+        }
+
+        /**
+         * Map the spilled chunks, grouping consecutive chunks into regions no bigger than a mapping can be.
+         * They come after every chunk in memory, so they go at the end of chunks.
+         */
+        void mapSpilled() throws IOException {
+            int first = 0;
+
+            while (first < spilledChunks.size()) {
+                long start = spilledChunks.get(first)[0];
+                int last = first;
+
+                while (last + 1 < spilledChunks.size() && end(spilledChunks.get(last + 1)) - start <= MAX_REGION_SIZE)
+                    last++;
+
+                ByteBuffer region = file.map(FileChannel.MapMode.READ_ONLY, start, end(spilledChunks.get(last)) - start);
+
+                owned.add(region);
+
+                for (int i = first; i <= last; i++) {
+                    ByteBuffer chunk = region.duplicate();
+                    int offset = (int) (spilledChunks.get(i)[0] - start);
+
+                    chunk.position(offset);
+                    chunk.limit(offset + (int) spilledChunks.get(i)[1]);
+                    chunks.add(chunk.slice());
+                }
+
+                first = last + 1;
+            }
+        }
+
+        private static long end(long[] chunk) {
+            return chunk[0] + chunk[1];
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (!done)
+                    owned.forEach(FREE);
+
+                if (spillBuffer != null)
+                    FREE.accept(spillBuffer);
+            } finally {
+                if (file != null)
+                    file.close();
+            }
+        }
+    }
+
+    /**
+     * The number of rows
+     */
+    public long size() {
+        return rows;
+    }
+
+    /**
+     * The size of the encoded rows, outside the heap
+     */
+    public long bytes() {
+        return bytes;
+    }
+
+    /**
+     * The part of {@link #bytes()} that didn't fit in the memory budget, and was written to a temporary file
+     */
+    public long spilled() {
+        return spilled;
+    }
+
+    /**
+     * Read every row, in the order the query returned them; call {@link Stream#parallel()} to read chunks on several threads
+     */
+    public Stream<T> stream() {
+        checkOpen();
+
+        return StreamSupport.stream(new Chunks(0, chunks.size()), false);
+    }
+
+    /**
+     * Free the rows in memory and unmap the rows in the file, now or as soon as the reads in progress are done
+     */
+    @Override
+    public void close() {
+        closed = true;
+
+        if (readers.get() == 0)
+            free();
+    }
+
+    private void checkOpen() {
+        if (closed)
+            throw new IllegalStateException("Materialized rows have been closed");
+    }
+
+    /**
+     * Keep the buffers until the matching {@link #endRead()}
+     */
+    private void startRead() {
+        readers.incrementAndGet();
+
+        // close() has either seen us, and left freeing to us, or set closed before we looked
+        if (closed) {
+            endRead();
+            checkOpen();
+        }
+    }
+
+    private void endRead() {
+        if (readers.decrementAndGet() == 0 && closed)
+            free();
+    }
+
+    /**
+     * Free the buffers once, whether it's close() or the last reader that gets here
+     */
+    private void free() {
+        if (freed.compareAndSet(false, true))
+            owned.forEach(FREE);
+    }
+
+    /**
+     * Frees a buffer now.
+     * There's no public way to free a direct buffer or unmap a file, so we use the JDK's own:
+     * {@code Unsafe.invokeCleaner} since Java 9, and the buffer's cleaner before that.
+     * If neither is there, buffers are freed by the garbage collector, as usual.
+     */
+    private static Consumer<ByteBuffer> freeBuffer() {
+        try {
+            Class<?> unsafeType = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeType.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeType.getDeclaredField("theUnsafe");
+
+            theUnsafe.setAccessible(true);
+
+            Object unsafe = theUnsafe.get(null);
+
+            return buffer -> invoke(() -> invokeCleaner.invoke(unsafe, buffer));
+        } catch (ReflectiveOperationException | RuntimeException noInvokeCleaner) {
+            try {
+                Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+                Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+
+                return buffer -> invoke(() -> {
+                    Object bufferCleaner = cleaner.invoke(buffer);
+
+                    return bufferCleaner == null ? null : clean.invoke(bufferCleaner);
+                });
+            } catch (ReflectiveOperationException | RuntimeException noCleaner) {
+                return buffer -> {};
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface Reflective {
+        Object invoke() throws ReflectiveOperationException;
+    }
+
+    private static void invoke(Reflective call) {
+        try {
+            call.invoke();
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Reads chunks [from, to); from is being read if current isn't null
+     */
+    private class Chunks implements Spliterator<T> {
+        private int from, to;
+        /**
+         * Our own view of chunk from, so other streams can read the same chunk at the same time
+         */
+        private ByteBuffer current;
+        private int remainingInCurrent;
+        private long remaining;
+
+        Chunks(int from, int to) {
+            this.from = from;
+            this.to = to;
+            this.remaining = rows(from, to);
+        }
+
+        private long rows(int from, int to) {
+            long rows = 0;
+
+            for (int i = from; i < to; i++)
+                rows += rowsPerChunk[i];
+
+            return rows;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            T row;
+
+            startRead();
+
+            try {
+                if (!nextChunk())
+                    return false;
+
+                row = decode();
+            } finally {
+                endRead();
+            }
+
+            action.accept(row);
+
+            return true;
+        }
+
+        /**
+         * Like tryAdvance, but keeps the buffers for a chunk at a time instead of a row at a time
+         */
+        @Override
+        public void forEachRemaining(Consumer<? super T> action) {
+            while (true) {
+                startRead();
+
+                try {
+                    if (!nextChunk())
+                        return;
+
+                    while (remainingInCurrent > 0)
+                        action.accept(decode());
+                } finally {
+                    endRead();
+                }
+            }
+        }
+
+        /**
+         * Move on to the next chunk if we've read all of current
+         *
+         * @return false if there are no rows left
+         */
+        private boolean nextChunk() {
+            while (current == null || remainingInCurrent == 0) {
+                if (current != null) {
+                    current = null;
+                    from++;
+                }
+
+                if (from >= to)
+                    return false;
+
+                current = chunks.get(from).duplicate();
+                remainingInCurrent = rowsPerChunk[from];
+            }
+
+            return true;
+        }
+
+        private T decode() {
+            T row;
+
+            try {
+                row = convert.convert(RowCodec.decodeRow(current, heap));
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+
+            remainingInCurrent--;
+            remaining--;
+
+            return row;
+        }
+
+        /**
+         * Hand the first half of our chunks, including the one we are reading, to a new spliterator
+         */
+        @Override
+        public Spliterator<T> trySplit() {
+            if (to - from < 2)
+                return null;
+
+            int middle = from + (to - from) / 2;
+            long suffix = rows(middle, to);
+            Chunks prefix = new Chunks(from, middle);
+
+            prefix.current = current;
+            prefix.remainingInCurrent = remainingInCurrent;
+            prefix.remaining = remaining - suffix;
+
+            from = middle;
+            current = null;
+            remaining = suffix;
+
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return remaining;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | SIZED | SUBSIZED | IMMUTABLE | NONNULL;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.fivetran.sql;
+
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Converts rows on a fork-join pool.
+ *
+ * The thread that iterates copies the raw values of {@code chunkSize} rows at a time out of the ResultSet,
+ * and hands each chunk to the pool to be converted, keeping a few chunks per pool thread in flight.
+ * If ordered, chunks come out in the order they were read; otherwise each chunk comes out as soon as it is converted.
+ */
+class ParallelCoerce<T> implements Iterator<T>, AutoCloseable {
+    /**
+     * Chunks in flight for each thread of the pool, so a thread that finishes a chunk has another waiting
+     */
+    private static final int CHUNKS_PER_THREAD = 2;
+
+    private final Iterator<Object[]> copies;
+    private final ToJava.Staged<T> toJava;
+    private final int chunkSize;
+    private final boolean ordered;
+    private final ForkJoinPool pool;
+    private final int maxInFlight;
+    /**
+     * Chunks that have been submitted and not yet consumed, in the order they were read
+     */
+    private final ArrayDeque<Future<List<T>>> inFlight = new ArrayDeque<>();
+    /**
+     * Collects chunks in the order they finish converting; only used if not ordered
+     */
+    private final CompletionService<List<T>> done;
+    private Iterator<T> current = Collections.emptyIterator();
+
+    /**
+     * @param copies The values of each row, from {@link ToJava.Staged#copy}
+     */
+    ParallelCoerce(Iterator<Object[]> copies, ToJava.Staged<T> toJava, int chunkSize, boolean ordered, ForkJoinPool pool) {
+        this.copies = copies;
+        this.toJava = toJava;
+        this.chunkSize = chunkSize;
+        this.ordered = ordered;
+        this.pool = pool;
+        this.maxInFlight = CHUNKS_PER_THREAD * pool.getParallelism();
+        this.done = ordered ? null : new ExecutorCompletionService<>(pool);
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!current.hasNext()) {
+            submit();
+
+            if (inFlight.isEmpty())
+                return false;
+
+            current = take().iterator();
+        }
+
+        return true;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+
+        return current.next();
+    }
+
+    /**
+     * Read chunks until the pool has enough work, or we run out of rows
+     */
+    private void submit() {
+        while (inFlight.size() < maxInFlight && copies.hasNext()) {
+            Object[][] chunk = new Object[chunkSize][];
+            int n = 0;
+
+            while (n < chunkSize && copies.hasNext())
+                chunk[n++] = copies.next();
+
+            int size = n;
+            Callable<List<T>> convert = () -> convert(chunk, size);
+
+            inFlight.add(ordered ? pool.submit(convert) : done.submit(convert));
+        }
+    }
+
+    private List<T> convert(Object[][] chunk, int size) throws SQLException {
+        List<T> converted = new ArrayList<>(size);
+
+        for (int i = 0; i < size; i++)
+            converted.add(toJava.convert(chunk[i]));
+
+        return converted;
+    }
+
+    /**
+     * Wait for the next chunk in order, or for any chunk if not ordered
+     */
+    private List<T> take() {
+        try {
+            Future<List<T>> next;
+
+            if (ordered)
+                next = inFlight.removeFirst();
+            else {
+                next = done.take();
+                inFlight.remove(next);
+            }
+
+            return next.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            else if (cause instanceof Error)
+                throw (Error) cause;
+            else
+                throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Cancel the chunks that haven't been converted; they only hold copied values, so nothing else needs to stop
+     */
+    @Override
+    public void close() {
+        for (Future<List<T>> task : inFlight)
+            task.cancel(false);
+
+        inFlight.clear();
+    }
+}
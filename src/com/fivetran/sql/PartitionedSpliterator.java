@@ -0,0 +1,158 @@
+package com.fivetran.sql;
+
+import java.sql.SQLException;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Reads several partitions of one query, each from its own stream, as one spliterator.
+ *
+ * A partition's stream is opened the first time it is read, and closed as soon as it runs out, so its connection goes back to the pool.
+ * trySplit() hands half of the partitions to the new spliterator, so a parallel stream reads different partitions on different threads.
+ */
+class PartitionedSpliterator<T> implements Spliterator<T>, AutoCloseable {
+    /**
+     * Opens the stream of one partition
+     */
+    @FunctionalInterface
+    interface Partition<T> {
+        Stream<T> open() throws SQLException;
+    }
+
+    private final List<Partition<T>> partitions;
+    /**
+     * Streams that have been opened and not closed, shared by every split so close() can find them
+     */
+    private final Set<Stream<T>> open;
+    /**
+     * Partitions [from, to) belong to this spliterator; from is being read if current isn't null
+     */
+    private int from, to;
+    private Stream<T> currentStream;
+    private Spliterator<T> current;
+
+    PartitionedSpliterator(List<Partition<T>> partitions) {
+        this(partitions, 0, partitions.size(), Collections.newSetFromMap(new IdentityHashMap<>()));
+    }
+
+    private PartitionedSpliterator(List<Partition<T>> partitions, int from, int to, Set<Stream<T>> open) {
+        this.partitions = partitions;
+        this.from = from;
+        this.to = to;
+        this.open = open;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action) {
+        while (from < to) {
+            if (current == null)
+                openNext();
+
+            if (current.tryAdvance(action))
+                return true;
+
+            closeCurrent();
+            from++;
+        }
+
+        return false;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super T> action) {
+        while (from < to) {
+            if (current == null)
+                openNext();
+
+            current.forEachRemaining(action);
+
+            closeCurrent();
+            from++;
+        }
+    }
+
+    private void openNext() {
+        try {
+            currentStream = partitions.get(from).open();
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+
+        synchronized (open) {
+            open.add(currentStream);
+        }
+
+        current = currentStream.spliterator();
+    }
+
+    private void closeCurrent() {
+        synchronized (open) {
+            open.remove(currentStream);
+        }
+
+        currentStream.close();
+        currentStream = null;
+        current = null;
+    }
+
+    /**
+     * Hand the first half of our partitions, including the one we are reading, to a new spliterator
+     */
+    @Override
+    public Spliterator<T> trySplit() {
+        if (to - from < 2)
+            return null;
+
+        int middle = from + (to - from + 1) / 2;
+        PartitionedSpliterator<T> prefix = new PartitionedSpliterator<>(partitions, from, middle, open);
+
+        prefix.currentStream = currentStream;
+        prefix.current = current;
+
+        from = middle;
+        currentStream = null;
+        current = null;
+
+        return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED;
+    }
+
+    /**
+     * Close every partition that is still open, in any split
+     */
+    @Override
+    public void close() {
+        List<Stream<T>> closing;
+
+        synchronized (open) {
+            closing = new ArrayList<>(open);
+            open.clear();
+        }
+
+        RuntimeException failure = null;
+
+        for (Stream<T> stream : closing) {
+            try {
+                stream.close();
+            } catch (RuntimeException e) {
+                if (failure == null)
+                    failure = e;
+                else
+                    failure.addSuppressed(e);
+            }
+        }
+
+        if (failure != null)
+            throw failure;
+    }
+}
@@ -0,0 +1,205 @@
+package com.fivetran.sql;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Reads rows from source on a background thread into a bounded buffer, so the database keeps working while the consumer does.
+ *
+ * The producer waits when the buffer is full. If the producer fails, the consumer sees the exception after the rows before it.
+ * {@link #close()} stops the producer after the row it is reading, and waits for it, so source can be closed safely afterwards.
+ * The producer only holds a weak reference to the consumer, so if the consumer is abandoned without being closed,
+ * the producer gives up the next time it finds the buffer full after the consumer has been garbage collected, and frees its thread.
+ * If the executor hasn't started the producer by the time the consumer has waited {@link #WAIT_MILLIS} for a row,
+ * because every thread is busy with other streams, the consumer reads source itself instead, without reading ahead,
+ * so a stream never waits for another stream to be closed.
+ */
+class Prefetch<T> implements Iterator<T>, AutoCloseable {
+    private static final Object NULL = new Object(), END = new Object();
+    /**
+     * How often a producer waiting for space in the buffer checks whether it should stop,
+     * and how long a consumer waits for the producer to start before reading source itself
+     */
+    private static final long WAIT_MILLIS = 100;
+
+    private final Iterator<T> source;
+    private final BlockingQueue<Object> buffer;
+    private final AtomicBoolean cancelled = new AtomicBoolean();
+    /**
+     * Set by whichever comes first: the producer starting, the consumer giving up on it, or close() before it started
+     */
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final FutureTask<?> producer;
+    /**
+     * An element we have taken from the buffer but not yet returned from next()
+     */
+    private Object taken;
+    /**
+     * True if the producer never started, and the consumer reads source itself
+     */
+    private boolean inline;
+
+    Prefetch(Iterator<T> source, int bufferSize, Executor threads) {
+        this.source = source;
+        this.buffer = new ArrayBlockingQueue<>(bufferSize);
+        this.producer = new FutureTask<>(new Producer<>(source, buffer, cancelled, started, new WeakReference<>(this)), null);
+
+        threads.execute(producer);
+    }
+
+    /**
+     * Doesn't refer to the Prefetch itself, so an abandoned Prefetch can be collected while the producer waits
+     */
+    private static class Producer<T> implements Runnable {
+        private final Iterator<T> source;
+        private final BlockingQueue<Object> buffer;
+        private final AtomicBoolean cancelled;
+        private final AtomicBoolean started;
+        private final WeakReference<Prefetch<T>> consumer;
+
+        Producer(Iterator<T> source, BlockingQueue<Object> buffer, AtomicBoolean cancelled, AtomicBoolean started, WeakReference<Prefetch<T>> consumer) {
+            this.source = source;
+            this.buffer = buffer;
+            this.cancelled = cancelled;
+            this.started = started;
+            this.consumer = consumer;
+        }
+
+        @Override
+        public void run() {
+            if (!started.compareAndSet(false, true))
+                return;
+
+            try {
+                while (!stopped() && source.hasNext()) {
+                    T next = source.next();
+
+                    if (!offer(next == null ? NULL : next))
+                        return;
+                }
+
+                offer(END);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Throwable e) {
+                try {
+                    offer(new Failure(e));
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        /**
+         * Wait for space in the buffer, unless nobody is going to make any
+         *
+         * @return false if we should stop
+         */
+        private boolean offer(Object element) throws InterruptedException {
+            while (!buffer.offer(element, WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (stopped())
+                    return false;
+            }
+
+            return true;
+        }
+
+        private boolean stopped() {
+            return cancelled.get() || consumer.get() == null;
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (inline)
+            return source.hasNext();
+
+        if (taken == null) {
+            try {
+                taken = buffer.poll(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+
+                if (taken == null) {
+                    // Every thread is busy with other streams, so don't wait for one; the producer will find it has nothing to do
+                    if (started.compareAndSet(false, true)) {
+                        inline = true;
+
+                        return source.hasNext();
+                    }
+
+                    taken = buffer.take();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+
+                throw new RuntimeException(e);
+            }
+        }
+
+        if (taken instanceof Failure) {
+            Throwable cause = ((Failure) taken).cause;
+
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            else if (cause instanceof Error)
+                throw (Error) cause;
+            else
+                throw new RuntimeException(cause);
+        }
+
+        return taken != END;
+    }
+
+    @Override
+    public T next() {
+        if (inline)
+            return source.next();
+
+        if (!hasNext())
+            throw new NoSuchElementException();
+
+        Object next = taken;
+        taken = null;
+
+        return next == NULL ? null : (T) next;
+    }
+
+    @Override
+    public void close() {
+        cancelled.set(true);
+
+        // We've been reading source ourselves, and the producer will never touch it
+        if (inline)
+            return;
+
+        // If the producer is still waiting for a thread, it will never read anything, so there's nothing to wait for
+        if (started.compareAndSet(false, true))
+            return;
+
+        // Make room, in case the producer is waiting for space in a full buffer
+        buffer.clear();
+
+        try {
+            producer.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // The producer puts its own failures in the buffer
+        }
+    }
+
+    private static class Failure {
+        final Throwable cause;
+
+        Failure(Throwable cause) {
+            this.cause = cause;
+        }
+    }
+}
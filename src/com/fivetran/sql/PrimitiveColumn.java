@@ -0,0 +1,95 @@
+package com.fivetran.sql;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.DoubleConsumer;
+import java.util.function.IntConsumer;
+import java.util.function.LongConsumer;
+
+/**
+ * Reads the first column of a ResultSet with getLong, getInt or getDouble, as a primitive spliterator,
+ * so each value goes from the driver to the consumer without being boxed.
+ *
+ * A null can't be a primitive, so it fails the stream.
+ */
+class PrimitiveColumn extends RowCursor {
+    PrimitiveColumn(ResultSet resultSet, AdaptiveFetchSize.Tracker fetchSizes) {
+        super(resultSet, fetchSizes);
+    }
+
+    Spliterator.OfLong longs() {
+        return new Spliterators.AbstractLongSpliterator(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+            @Override
+            public boolean tryAdvance(LongConsumer action) {
+                if (!advance())
+                    return false;
+
+                long value;
+
+                try {
+                    value = resultSet.getLong(1);
+                    checkNull("long");
+                } catch (SQLException e) {
+                    throw failed(e);
+                }
+
+                action.accept(value);
+
+                return true;
+            }
+        };
+    }
+
+    Spliterator.OfInt ints() {
+        return new Spliterators.AbstractIntSpliterator(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+            @Override
+            public boolean tryAdvance(IntConsumer action) {
+                if (!advance())
+                    return false;
+
+                int value;
+
+                try {
+                    value = resultSet.getInt(1);
+                    checkNull("int");
+                } catch (SQLException e) {
+                    throw failed(e);
+                }
+
+                action.accept(value);
+
+                return true;
+            }
+        };
+    }
+
+    Spliterator.OfDouble doubles() {
+        return new Spliterators.AbstractDoubleSpliterator(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+            @Override
+            public boolean tryAdvance(DoubleConsumer action) {
+                if (!advance())
+                    return false;
+
+                double value;
+
+                try {
+                    value = resultSet.getDouble(1);
+                    checkNull("double");
+                } catch (SQLException e) {
+                    throw failed(e);
+                }
+
+                action.accept(value);
+
+                return true;
+            }
+        };
+    }
+
+    private void checkNull(String type) throws SQLException {
+        if (resultSet.wasNull())
+            throw new SqlMappingException("Found null in " + resultSet.getMetaData().getColumnLabel(1) + ", which can't be a " + type);
+    }
+}
@@ -14,12 +14,21 @@ import java.util.Map;
 public class ResultSetConnection implements ResultSet {
     public final ResultSet delegate;
     public final Connection connection;
+    private final AutoCloseable statement;
 
     public ResultSetConnection(ResultSet delegate, Connection connection) {
+        this(delegate, connection, () -> {});
+    }
+
+    /**
+     * @param statement Releases the statement that produced delegate, before connection is closed
+     */
+    public ResultSetConnection(ResultSet delegate, Connection connection, AutoCloseable statement) {
         super();
 
         this.delegate = delegate;
         this.connection = connection;
+        this.statement = statement;
     }
 
     @Override
@@ -29,8 +38,16 @@ public class ResultSetConnection implements ResultSet {
 
     @Override
     public void close() throws SQLException {
-        delegate.close();
-        connection.close();
+        try {
+            delegate.close();
+            statement.close();
+        } catch (SQLException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new SQLException(e);
+        } finally {
+            connection.close();
+        }
     }
 
     @Override
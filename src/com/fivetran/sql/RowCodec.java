@@ -0,0 +1,183 @@
+package com.fivetran.sql;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Encodes the values copied out of a row as bytes: a count, then a tag byte and a fixed or length-prefixed payload for each value.
+ *
+ * Values of other types, like json trees or enums, can't be encoded; they are added to {@code heap}, and the row holds their index.
+ */
+class RowCodec {
+    private static final byte NULL = 0,
+            LONG = 1,
+            INT = 2,
+            SHORT = 3,
+            DOUBLE = 4,
+            FLOAT = 5,
+            TRUE = 6,
+            FALSE = 7,
+            STRING = 8,
+            DECIMAL = 9,
+            LOCAL_DATE = 10,
+            LOCAL_DATE_TIME = 11,
+            INSTANT = 12,
+            BYTES = 13,
+            EMPTY = 14,
+            OPTIONAL = 15,
+            LIST = 16,
+            HEAP = 17;
+
+    /**
+     * @throws java.nio.BufferOverflowException If the row doesn't fit in {@code to}
+     */
+    static void encodeRow(Object[] row, ByteBuffer to, List<Object> heap) {
+        to.putInt(row.length);
+
+        for (Object value : row)
+            encode(value, to, heap);
+    }
+
+    static Object[] decodeRow(ByteBuffer from, List<Object> heap) {
+        Object[] row = new Object[from.getInt()];
+
+        for (int i = 0; i < row.length; i++)
+            row[i] = decode(from, heap);
+
+        return row;
+    }
+
+    private static void encode(Object value, ByteBuffer to, List<Object> heap) {
+        if (value == null)
+            to.put(NULL);
+        else if (value instanceof Long)
+            to.put(LONG).putLong((Long) value);
+        else if (value instanceof Integer)
+            to.put(INT).putInt((Integer) value);
+        else if (value instanceof Short)
+            to.put(SHORT).putShort((Short) value);
+        else if (value instanceof Double)
+            to.put(DOUBLE).putDouble((Double) value);
+        else if (value instanceof Float)
+            to.put(FLOAT).putFloat((Float) value);
+        else if (value instanceof Boolean)
+            to.put((Boolean) value ? TRUE : FALSE);
+        else if (value instanceof String)
+            bytes(STRING, ((String) value).getBytes(StandardCharsets.UTF_8), to);
+        else if (value instanceof BigDecimal) {
+            BigDecimal decimal = (BigDecimal) value;
+
+            bytes(DECIMAL, decimal.unscaledValue().toByteArray(), to);
+            to.putInt(decimal.scale());
+        }
+        else if (value instanceof LocalDate)
+            to.put(LOCAL_DATE).putLong(((LocalDate) value).toEpochDay());
+        else if (value instanceof LocalDateTime) {
+            LocalDateTime dateTime = (LocalDateTime) value;
+
+            to.put(LOCAL_DATE_TIME).putLong(dateTime.toLocalDate().toEpochDay()).putLong(dateTime.toLocalTime().toNanoOfDay());
+        }
+        else if (value instanceof Instant) {
+            Instant instant = (Instant) value;
+
+            to.put(INSTANT).putLong(instant.getEpochSecond()).putInt(instant.getNano());
+        }
+        else if (value instanceof byte[])
+            bytes(BYTES, (byte[]) value, to);
+        else if (value instanceof Optional) {
+            Optional<?> optional = (Optional<?>) value;
+
+            if (optional.isPresent()) {
+                to.put(OPTIONAL);
+                encode(optional.get(), to, heap);
+            }
+            else
+                to.put(EMPTY);
+        }
+        else if (value instanceof ArrayList) {
+            List<?> list = (List<?>) value;
+
+            to.put(LIST).putInt(list.size());
+
+            for (Object element : list)
+                encode(element, to, heap);
+        }
+        else {
+            to.put(HEAP).putInt(heap.size());
+            heap.add(value);
+        }
+    }
+
+    private static void bytes(byte tag, byte[] bytes, ByteBuffer to) {
+        to.put(tag).putInt(bytes.length).put(bytes);
+    }
+
+    private static Object decode(ByteBuffer from, List<Object> heap) {
+        byte tag = from.get();
+
+        switch (tag) {
+            case NULL:
+                return null;
+            case LONG:
+                return from.getLong();
+            case INT:
+                return from.getInt();
+            case SHORT:
+                return from.getShort();
+            case DOUBLE:
+                return from.getDouble();
+            case FLOAT:
+                return from.getFloat();
+            case TRUE:
+                return true;
+            case FALSE:
+                return false;
+            case STRING:
+                return new String(bytes(from), StandardCharsets.UTF_8);
+            case DECIMAL:
+                return new BigDecimal(new BigInteger(bytes(from)), from.getInt());
+            case LOCAL_DATE:
+                return LocalDate.ofEpochDay(from.getLong());
+            case LOCAL_DATE_TIME:
+                return LocalDateTime.of(LocalDate.ofEpochDay(from.getLong()), LocalTime.ofNanoOfDay(from.getLong()));
+            case INSTANT:
+                return Instant.ofEpochSecond(from.getLong(), from.getInt());
+            case BYTES:
+                return bytes(from);
+            case EMPTY:
+                return Optional.empty();
+            case OPTIONAL:
+                return Optional.of(decode(from, heap));
+            case LIST: {
+                int size = from.getInt();
+                List<Object> list = new ArrayList<>(size);
+
+                for (int i = 0; i < size; i++)
+                    list.add(decode(from, heap));
+
+                return list;
+            }
+            case HEAP:
+                return heap.get(from.getInt());
+            default:
+                throw new IllegalStateException("Unknown tag " + tag);
+        }
+    }
+
+    private static byte[] bytes(ByteBuffer from) {
+        byte[] bytes = new byte[from.getInt()];
+
+        from.get(bytes);
+
+        return bytes;
+    }
+}
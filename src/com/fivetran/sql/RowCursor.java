@@ -0,0 +1,58 @@
+package com.fivetran.sql;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Moves through a ResultSet, and remembers whether it got to the end, so whoever closes it knows whether to commit the cursor
+ */
+class RowCursor {
+    final ResultSet resultSet;
+    private final AdaptiveFetchSize.Tracker fetchSizes;
+    /**
+     * true if we know there isn't a next row
+     */
+    boolean empty = false;
+    /**
+     * true if reading a row threw an exception
+     */
+    boolean failed = false;
+
+    /**
+     * @param fetchSizes Adjusts the fetch size of resultSet as it is read, or null to keep it fixed
+     */
+    RowCursor(ResultSet resultSet, AdaptiveFetchSize.Tracker fetchSizes) {
+        this.resultSet = resultSet;
+        this.fetchSizes = fetchSizes;
+    }
+
+    /**
+     * Move to the next row, if there is one
+     */
+    boolean advance() {
+        if (empty)
+            return false;
+
+        try {
+            if (fetchSizes == null ? resultSet.next() : fetchSizes.next(resultSet))
+                return true;
+
+            empty = true;
+
+            return false;
+        } catch (SQLException e) {
+            empty = true;
+
+            throw failed(e);
+        }
+    }
+
+    /**
+     * Note that reading failed, and wrap e so it can be thrown from a stream
+     */
+    RuntimeException failed(SQLException e) {
+        failed = true;
+
+        return new RuntimeException(e);
+    }
+}
@@ -0,0 +1,218 @@
+package com.fivetran.sql;
+
+import java.util.*;
+import java.util.function.BiConsumer;
+
+/**
+ * An immutable row of a {@code Map} query.
+ * Every row of a query shares one {@link Keys}, so a row only holds its values, in column order.
+ */
+public final class RowMap extends AbstractMap<String, Object> {
+    private final Keys keys;
+    private final Object[] values;
+
+    /**
+     * @param values One value for each of {@code keys}, in order; not copied
+     */
+    public RowMap(Keys keys, Object[] values) {
+        if (keys.size() != values.length)
+            throw new IllegalArgumentException("Expected " + keys.size() + " values but found " + values.length);
+
+        this.keys = keys;
+        this.values = values;
+    }
+
+    @Override
+    public int size() {
+        return values.length;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return keys.indexOf(key) >= 0;
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        for (Object each : values) {
+            if (Objects.equals(each, value))
+                return true;
+        }
+
+        return false;
+    }
+
+    @Override
+    public Object get(Object key) {
+        int i = keys.indexOf(key);
+
+        return i < 0 ? null : values[i];
+    }
+
+    @Override
+    public void forEach(BiConsumer<? super String, ? super Object> action) {
+        for (int i = 0; i < values.length; i++)
+            action.accept(keys.key(i), values[i]);
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return new AbstractSet<Entry<String, Object>>() {
+            @Override
+            public Iterator<Entry<String, Object>> iterator() {
+                return new Iterator<Entry<String, Object>>() {
+                    int next = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < values.length;
+                    }
+
+                    @Override
+                    public Entry<String, Object> next() {
+                        if (next >= values.length)
+                            throw new NoSuchElementException();
+
+                        int i = next++;
+
+                        return new SimpleImmutableEntry<>(keys.key(i), values[i]);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return values.length;
+            }
+        };
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 0;
+
+        for (int i = 0; i < values.length; i++)
+            hash += keys.key(i).hashCode() ^ Objects.hashCode(values[i]);
+
+        return hash;
+    }
+
+    /**
+     * The distinct column names of a query, in order, with a perfect hash table from name to position.
+     */
+    public static final class Keys {
+        /**
+         * Give up on a perfect hash if the table would be this much bigger than the number of keys
+         */
+        private static final int MAX_EXTRA_BITS = 4;
+        private static final int ATTEMPTS_PER_SIZE = 64;
+
+        private final String[] keys;
+        /**
+         * Position of each key + 1, at (hash * multiplier) >>> shift; 0 for empty
+         */
+        private final int[] table;
+        private final int multiplier, shift;
+        /**
+         * Used instead of table when two keys have the same hashCode(), so no perfect hash exists
+         */
+        private final Map<String, Integer> fallback;
+
+        /**
+         * @param names Column names; repeated names are only kept once, at their first position
+         */
+        public static Keys of(String[] names) {
+            LinkedHashSet<String> distinct = new LinkedHashSet<>();
+
+            for (String name : names)
+                distinct.add(name.intern());
+
+            return new Keys(distinct.toArray(new String[distinct.size()]));
+        }
+
+        private Keys(String[] keys) {
+            this.keys = keys;
+
+            int[] found = searchMultiplier(keys);
+
+            if (found != null) {
+                this.multiplier = found[0];
+                this.shift = found[1];
+                this.table = perfectHash(keys, multiplier, shift);
+                this.fallback = null;
+            }
+            else {
+                this.multiplier = 0;
+                this.shift = 0;
+                this.table = null;
+                this.fallback = new HashMap<>();
+
+                for (int i = 0; i < keys.length; i++)
+                    fallback.put(keys[i], i);
+            }
+        }
+
+        /**
+         * Find {multiplier, shift} that hash keys into the smallest table without collisions, or null if we can't
+         */
+        private static int[] searchMultiplier(String[] keys) {
+            int minBits = Math.max(1, 32 - Integer.numberOfLeadingZeros(keys.length));
+
+            for (int bits = minBits; bits <= Math.min(30, minBits + MAX_EXTRA_BITS); bits++) {
+                for (int attempt = 0; attempt < ATTEMPTS_PER_SIZE; attempt++) {
+                    int multiplier = (0x9E3779B9 + attempt * 0x632BE5AB) | 1;
+
+                    if (perfectHash(keys, multiplier, 32 - bits) != null)
+                        return new int[]{multiplier, 32 - bits};
+                }
+            }
+
+            return null;
+        }
+
+        /**
+         * A table with no collisions between keys, or null if this multiplier and shift produce a collision
+         */
+        private static int[] perfectHash(String[] keys, int multiplier, int shift) {
+            int[] table = new int[1 << (32 - shift)];
+
+            for (int i = 0; i < keys.length; i++) {
+                int slot = (keys[i].hashCode() * multiplier) >>> shift;
+
+                if (table[slot] != 0)
+                    return null;
+
+                table[slot] = i + 1;
+            }
+
+            return table;
+        }
+
+        public int size() {
+            return keys.length;
+        }
+
+        public String key(int i) {
+            return keys[i];
+        }
+
+        /**
+         * Position of key, or -1 if it isn't one of these keys
+         */
+        public int indexOf(Object key) {
+            if (!(key instanceof String))
+                return -1;
+            else if (fallback != null)
+                return fallback.getOrDefault(key, -1);
+
+            int i = table[(key.hashCode() * multiplier) >>> shift] - 1;
+
+            if (i < 0)
+                return -1;
+            else if (keys[i] == key || keys[i].equals(key))
+                return i;
+            else
+                return -1;
+        }
+    }
+}
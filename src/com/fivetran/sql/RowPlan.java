@@ -0,0 +1,108 @@
+package com.fivetran.sql;
+
+import java.lang.reflect.Type;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+
+/**
+ * How to read each column of a query, decided once from its ResultSetMetaData,
+ * so reading a row doesn't have to re-examine the metadata or the requested Java types.
+ */
+public class RowPlan {
+    private final String[] names;
+    private final ColumnReader[] readers;
+    /**
+     * The readers that can be split into a copy and a decode step, or null for columns that are read in one step
+     */
+    private final ColumnReader.Split[] splits;
+
+    private RowPlan(String[] names, ColumnReader[] readers) {
+        this.names = names;
+        this.readers = readers;
+        this.splits = new ColumnReader.Split[readers.length];
+
+        for (int i = 0; i < readers.length; i++) {
+            if (readers[i] instanceof ColumnReader.Split)
+                splits[i] = (ColumnReader.Split) readers[i];
+        }
+    }
+
+    /**
+     * Read every column as the value a {@code Map} row holds
+     */
+    public static RowPlan forMap(ResultSetMetaData metaData) throws SQLException {
+        int n = metaData.getColumnCount();
+        String[] names = new String[n];
+        ColumnReader[] readers = new ColumnReader[n];
+
+        for (int i = 0; i < n; i++) {
+            names[i] = metaData.getColumnName(i + 1);
+            readers[i] = ToJavaMap.sqlToJava(metaData, i + 1);
+        }
+
+        return new RowPlan(names, readers);
+    }
+
+    /**
+     * Read column {@code columns[i]} as {@code types[i]}
+     */
+    public static RowPlan forTypes(ResultSetMetaData metaData, int[] columns, Type[] types) throws SQLException {
+        int n = columns.length;
+        String[] names = new String[n];
+        ColumnReader[] readers = new ColumnReader[n];
+
+        for (int i = 0; i < n; i++) {
+            names[i] = metaData.getColumnName(columns[i]);
+            readers[i] = Coerce.sqlToJava(metaData, columns[i], types[i]);
+        }
+
+        return new RowPlan(names, readers);
+    }
+
+    public int size() {
+        return readers.length;
+    }
+
+    public String name(int i) {
+        return names[i];
+    }
+
+    public ColumnReader reader(int i) {
+        return readers[i];
+    }
+
+    /**
+     * Read every column of the current row
+     */
+    public Object[] read(ResultSet row) throws SQLException {
+        Object[] values = new Object[readers.length];
+
+        for (int i = 0; i < readers.length; i++)
+            values[i] = readers[i].read(row);
+
+        return values;
+    }
+
+    /**
+     * Copy every column out of the current row, leaving the expensive conversions for {@link #decode}
+     */
+    public Object[] copy(ResultSet row) throws SQLException {
+        Object[] values = new Object[readers.length];
+
+        for (int i = 0; i < readers.length; i++)
+            values[i] = splits[i] == null ? readers[i].read(row) : splits[i].copy.read(row);
+
+        return values;
+    }
+
+    /**
+     * Finish converting the values of {@link #copy}, in place; doesn't need the ResultSet
+     */
+    public void decode(Object[] copied) throws SQLException {
+        for (int i = 0; i < splits.length; i++) {
+            if (splits[i] != null)
+                copied[i] = splits[i].decoder.decode(copied[i]);
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package com.fivetran.sql;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.dataformat.csv.CsvFactory;
+import com.fasterxml.jackson.dataformat.csv.CsvGenerator;
+import com.fasterxml.jackson.dataformat.csv.CsvSchema;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.sql.Array;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+
+/**
+ * Writes rows straight from a ResultSet to a Jackson generator, as JSON objects or CSV records,
+ * without converting each row to a Map or a JsonNode first.
+ *
+ * How to write each column is decided once, from the metadata, so writing a row is one typed getter and one write per column.
+ * json columns are written as they came from the server, without being parsed.
+ */
+public class RowWriter {
+    /**
+     * Only quote values that need it, with a separator, quote or line break, like Postgres does, instead of everything with a space in it
+     */
+    private static final CsvFactory CSV = new CsvFactory().configure(CsvGenerator.Feature.STRICT_CHECK_FOR_QUOTING, true);
+    /**
+     * Arrays are rare enough that we let Jackson serialize them, but we don't want it to flush the output after each one
+     */
+    private static final ObjectWriter ARRAYS = Config.JSON.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+
+    @FunctionalInterface
+    private static interface ColumnWriter {
+        public void write(ResultSet row, int column, JsonGenerator out) throws SQLException, IOException;
+    }
+
+    private final String[] names;
+    private final SerializedString[] fieldNames;
+    private final ColumnWriter[] json;
+    private final ColumnWriter[] csv;
+
+    public RowWriter(ResultSetMetaData metaData) throws SQLException {
+        int count = metaData.getColumnCount();
+
+        names = new String[count];
+        fieldNames = new SerializedString[count];
+        json = new ColumnWriter[count];
+        csv = new ColumnWriter[count];
+
+        for (int i = 0; i < count; i++) {
+            int column = i + 1;
+
+            names[i] = metaData.getColumnLabel(column);
+            fieldNames[i] = new SerializedString(names[i]);
+            json[i] = writer(metaData, column, false);
+            csv[i] = writer(metaData, column, true);
+        }
+    }
+
+    /**
+     * The CSV columns, with a header line of column names
+     */
+    public CsvSchema csvSchema() {
+        CsvSchema.Builder schema = CsvSchema.builder();
+
+        for (String name : names)
+            schema.addColumn(name);
+
+        return schema.setUseHeader(true).build();
+    }
+
+    /**
+     * Write the current row of {@code row} to {@code out} as a JSON object
+     */
+    public void writeJson(ResultSet row, JsonGenerator out) throws SQLException, IOException {
+        out.writeStartObject();
+
+        for (int i = 0; i < json.length; i++) {
+            out.writeFieldName(fieldNames[i]);
+            json[i].write(row, i + 1, out);
+        }
+
+        out.writeEndObject();
+    }
+
+    /**
+     * Write the current row of {@code row} to {@code out}, a CSV generator with {@link #csvSchema()}, as one record
+     */
+    public void writeCsv(ResultSet row, JsonGenerator out) throws SQLException, IOException {
+        out.writeStartArray();
+
+        for (int i = 0; i < csv.length; i++)
+            csv[i].write(row, i + 1, out);
+
+        out.writeEndArray();
+    }
+
+    /**
+     * Write the rest of {@code rows} to {@code to} as newline-delimited JSON, one object per line.
+     * {@code to} is flushed but not closed.
+     *
+     * @return The number of rows written
+     */
+    public long writeJsonLines(ResultSet rows, OutputStream to) throws SQLException, IOException {
+        long count = 0;
+
+        try (JsonGenerator out = Config.JSON.getFactory().createGenerator(to)) {
+            out.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            out.setRootValueSeparator(null);
+
+            while (rows.next()) {
+                writeJson(rows, out);
+                out.writeRaw('\n');
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Write the rest of {@code rows} to {@code to} as CSV, with a header line.
+     * {@code to} is flushed but not closed.
+     *
+     * @return The number of rows written
+     */
+    public long writeCsv(ResultSet rows, OutputStream to) throws SQLException, IOException {
+        long count = 0;
+
+        try (JsonGenerator out = CSV.createGenerator(to)) {
+            out.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            out.setSchema(csvSchema());
+
+            while (rows.next()) {
+                writeCsv(rows, out);
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    private static ColumnWriter writer(ResultSetMetaData metaData, int column, boolean csv) throws SQLException {
+        int type = metaData.getColumnType(column);
+
+        switch (type) {
+            case Types.BIGINT:
+                return RowWriter::writeLong;
+            case Types.INTEGER:
+            case Types.SMALLINT:
+            case Types.TINYINT:
+                return RowWriter::writeInt;
+            case Types.DOUBLE:
+            case Types.FLOAT:
+                return RowWriter::writeDouble;
+            case Types.REAL:
+                return RowWriter::writeFloat;
+            case Types.NUMERIC:
+            case Types.DECIMAL:
+                return RowWriter::writeDecimal;
+            case Types.BIT:
+            case Types.BOOLEAN:
+                return RowWriter::writeBoolean;
+            case Types.DATE:
+            case Types.TIMESTAMP:
+            case Types.TIMESTAMP_WITH_TIMEZONE:
+                // FixDates gives us LocalDate, LocalDateTime and Instant, which print as ISO-8601 like Config.JSON writes them
+                return RowWriter::writeToString;
+            case Types.BINARY:
+            case Types.VARBINARY:
+            case Types.LONGVARBINARY:
+                return RowWriter::writeBytes;
+            case Types.ARRAY:
+                if (csv)
+                    // Array literals, like {1,2,3}, which is also what COPY ... CSV writes
+                    return RowWriter::writeToString;
+                else if (metaData.getColumnTypeName(column).equals("_json"))
+                    return RowWriter::writeRawArray;
+                else
+                    return RowWriter::writeArray;
+            default:
+                if (Coerce.isJson(metaData, column) && !csv)
+                    return RowWriter::writeRaw;
+                else
+                    return RowWriter::writeString;
+        }
+    }
+
+    private static void writeLong(ResultSet row, int column, JsonGenerator out) throws SQLException, IOException {
+        long value = row.getLong(column);
+
+        if (row.wasNull())
+            out.writeNull();
+        else
+            out.writeNumber(value);
+    }
+
+    private static void writeInt(ResultSet row, int column, JsonGenerator out) throws SQLException, IOException {
+        int value = row.getInt(column);
+
+        if (row.wasNull())
+            out.writeNull();
+        else
+            out.writeNumber(value);
+    }
+
+    private static void writeDouble(ResultSet row, int column, JsonGenerator out) throws SQLException, IOException {
+        double value = row.getDouble(column);
+
+        if (row.wasNull())
+            out.writeNull();
+        else
+            out.writeNumber(value);
+    }
+
+    private static void writeFloat(ResultSet row, int column, JsonGenerator out) throws SQLException, IOException {
+        float value = row.getFloat(column);
+
+        if (row.wasNull())
+            out.writeNull();
+        else
+            out.writeNumber(value);
+    }
+
+    private static void writeDecimal(ResultSet row, int column, JsonGenerator out) throws SQLException, IOException {
+        BigDecimal value = row.getBigDecimal(column);
+
+        if (value == null)
+            out.writeNull();
+        else
+            out.writeNumber(value);
+    }
+
+    private static void writeBoolean(ResultSet row, int column, JsonGenerator out) throws SQLException, IOException {
+        boolean value = row.getBoolean(column);
+
+        if (row.wasNull())
+            out.writeNull();
+        else
+            out.writeBoolean(value);
+    }
+
+    private static void writeString(ResultSet row, int column, JsonGenerator out) throws SQLException, IOException {
+        String value = row.getString(column);
+
+        if (value == null)
+            out.writeNull();
+        else
+            out.writeString(value);
+    }
+
+    private static void writeToString(ResultSet row, int column, JsonGenerator out) throws SQLException, IOException {
+        Object value = row.getObject(column);
+
+        if (value == null)
+            out.writeNull();
+        else
+            out.writeString(value.toString());
+    }
+
+    private static void writeBytes(ResultSet row, int column, JsonGenerator out) throws SQLException, IOException {
+        byte[] value = row.getBytes(column);
+
+        if (value == null)
+            out.writeNull();
+        else
+            out.writeBinary(value);
+    }
+
+    /**
+     * A json column, written as the text the server sent
+     */
+    private static void writeRaw(ResultSet row, int column, JsonGenerator out) throws SQLException, IOException {
+        String value = row.getString(column);
+
+        if (value == null)
+            out.writeNull();
+        else
+            out.writeRawValue(value);
+    }
+
+    private static void writeRawArray(ResultSet row, int column, JsonGenerator out) throws SQLException, IOException {
+        Array value = row.getArray(column);
+
+        if (value == null) {
+            out.writeNull();
+
+            return;
+        }
+
+        out.writeStartArray();
+
+        for (Object element : (Object[]) value.getArray()) {
+            if (element == null)
+                out.writeNull();
+            else
+                out.writeRawValue(element.toString());
+        }
+
+        out.writeEndArray();
+    }
+
+    private static void writeArray(ResultSet row, int column, JsonGenerator out) throws SQLException, IOException {
+        Array value = row.getArray(column);
+
+        if (value == null)
+            out.writeNull();
+        else
+            ARRAYS.writeValue(out, value.getArray());
+    }
+}
@@ -2,59 +2,480 @@ package com.fivetran.sql;
 
 import com.fivetran.sql.named.NamedParameters;
 import com.fivetran.sql.named.ParsedSql;
+import com.fivetran.sql.stream.CloseableDoubleStream;
+import com.fivetran.sql.stream.CloseableIntStream;
+import com.fivetran.sql.stream.CloseableLongStream;
 import com.fivetran.sql.stream.CloseableStream;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.intellij.lang.annotations.Language;
 import org.apache.log4j.Logger;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyOut;
 import org.postgresql.jdbc4.Jdbc4Connection;
+import org.postgresql.util.PGobject;
 
 import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.sql.*;
+import java.time.ZoneId;
 import java.time.ZoneOffset;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
 public class Sql {
     private static final Logger log = Logger.getLogger(Sql.class);
     private static final ScheduledExecutorService executor = Executors.newScheduledThreadPool(1);
+    private static final int PREFETCH_THREADS = 32;
+    /**
+     * Runs the readers of {@link Query#prefetch(int)}; once every thread is busy, more streams are read without reading ahead
+     */
+    private static final ExecutorService prefetchThreads = prefetchThreads();
+
+    private static final long DEFAULT_METADATA_CACHE_SIZE = 1000;
+    private static final long PARSED_SQL_CACHE_SIZE = 10000;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    private static final long DEFAULT_MATERIALIZE_BUDGET = 64L * 1024 * 1024;
+
+    /**
+     * Parsing only depends on the text of the SQL, so every Sql instance shares one cache
+     */
+    private static final Cache<String, Parsed> parsedSqlCache = CacheBuilder.newBuilder()
+                                                                            .maximumSize(PARSED_SQL_CACHE_SIZE)
+                                                                            .recordStats()
+                                                                            .build();
 
-    private final DataSource database;
+    private final Connections connections;
     private final ZoneOffset timeZone;
+    private final Cache<String, CachedMetaData> metaDataCache;
+    private final Cache<String, CachedParameters> parameterCache;
+    private final LongSupplier schemaVersion;
+    private final StatementCache statements;
+    private final int fetchSize;
+    private final AdaptiveFetchSize adaptiveFetchSize;
+    private final long materializeBudget;
 
     public Sql(DataSource database) {
-        this(database, ZoneOffset.UTC);
+        this(() -> open(database),
+             ZoneOffset.UTC,
+             metaDataCache(DEFAULT_METADATA_CACHE_SIZE),
+             metaDataCache(DEFAULT_METADATA_CACHE_SIZE),
+             () -> 0,
+             new StatementCache(0),
+             0,
+             null,
+             DEFAULT_MATERIALIZE_BUDGET);
     }
 
     public Sql withTimeZone(ZoneOffset zone) {
-        return new Sql(database, zone);
+        return new Sql(connections, zone, metaDataCache, parameterCache, schemaVersion, statements, fetchSize, adaptiveFetchSize, materializeBudget);
+    }
+
+    /**
+     * Keep at most {@code size} ResultSetMetaData and ParameterMetaData entries, starting from empty caches
+     */
+    public Sql withMetaDataCacheSize(long size) {
+        return new Sql(connections, timeZone, metaDataCache(size), metaDataCache(size), schemaVersion, statements, fetchSize, adaptiveFetchSize, materializeBudget);
+    }
+
+    /**
+     * Check {@code schemaVersion} every time cached metadata is used,
+     * and re-describe any query that was cached under a different version.
+     * Bump the version after running DDL to invalidate lazily instead of calling {@link #invalidateMetadata()}.
+     */
+    public Sql withSchemaVersion(LongSupplier schemaVersion) {
+        return new Sql(connections, timeZone, metaDataCache, parameterCache, schemaVersion, statements, fetchSize, adaptiveFetchSize, materializeBudget);
+    }
+
+    /**
+     * Keep up to {@code size} prepared statements open on each pooled connection, least recently used evicted first.
+     * Only useful with a connection pool: without one, every connection and its statements are closed after use.
+     */
+    public Sql withStatementCache(int size) {
+        return new Sql(connections, timeZone, metaDataCache, parameterCache, schemaVersion, new StatementCache(size), fetchSize, adaptiveFetchSize, materializeBudget);
+    }
+
+    /**
+     * Stream the results of queries through a server-side cursor, reading {@code fetchSize} rows per round trip,
+     * instead of reading the entire result into memory before returning the first row.
+     * The cursor lives in a transaction which is committed or rolled back when the stream is closed.
+     * Use 0, the default, to turn cursors off.
+     */
+    public Sql withFetchSize(int fetchSize) {
+        return new Sql(connections, timeZone, metaDataCache, parameterCache, schemaVersion, statements, fetchSize, adaptiveFetchSize, materializeBudget);
+    }
+
+    /**
+     * Stream the results of queries through a cursor, like {@link #withFetchSize(int)},
+     * letting {@code fetchSizes} choose the size of each batch as the query runs.
+     * Queries start at {@link AdaptiveFetchSize#initialFetchSize()}, or the size given to {@link Query#withFetchSize(int)}.
+     */
+    public Sql withAdaptiveFetchSize(AdaptiveFetchSize fetchSizes) {
+        return new Sql(connections, timeZone, metaDataCache, parameterCache, schemaVersion, statements, fetchSizes.initialFetchSize(), fetchSizes, materializeBudget);
+    }
+
+    /**
+     * Keep up to {@code bytes} of each {@link Query#materialize} result in memory,
+     * and write the rest to a memory-mapped temporary file, so materializing a big result doesn't run out of memory.
+     * The default is 64 MB. Memory in use counts against the JVM's direct memory limit, {@code -XX:MaxDirectMemorySize}.
+     */
+    public Sql withMaterializeBudget(long bytes) {
+        if (bytes < 0)
+            throw new IllegalArgumentException("Materialize budget must be non-negative but was " + bytes);
+
+        return new Sql(connections, timeZone, metaDataCache, parameterCache, schemaVersion, statements, fetchSize, adaptiveFetchSize, bytes);
+    }
+
+    /**
+     * Hits, misses and evictions of the prepared statement cache
+     */
+    public CacheStats statementCacheStats() {
+        return statements.stats();
     }
 
-    private Sql(DataSource database, ZoneOffset timeZone) {
-        this.database = database;
+    private Sql(Connections connections,
+                ZoneOffset timeZone,
+                Cache<String, CachedMetaData> metaDataCache,
+                Cache<String, CachedParameters> parameterCache,
+                LongSupplier schemaVersion,
+                StatementCache statements,
+                int fetchSize,
+                AdaptiveFetchSize adaptiveFetchSize,
+                long materializeBudget) {
+        this.connections = connections;
         this.timeZone = timeZone;
+        this.metaDataCache = metaDataCache;
+        this.parameterCache = parameterCache;
+        this.schemaVersion = schemaVersion;
+        this.statements = statements;
+        this.fetchSize = fetchSize;
+        this.adaptiveFetchSize = adaptiveFetchSize;
+        this.materializeBudget = materializeBudget;
+    }
+
+    /**
+     * Run body in one transaction, on one connection, at the database's default isolation level.
+     * See {@link #transaction(Isolation, TransactionBody)}.
+     */
+    public <T> T transaction(TransactionBody<T> body) throws SQLException {
+        return transaction(null, body);
+    }
+
+    /**
+     * Run body in one transaction, on one connection.
+     * Every query, statement and batch of the {@link Transaction} uses that connection, instead of checking one out of the pool.
+     * If body returns, the transaction is committed; if it throws, the transaction is rolled back and the exception re-thrown.
+     * Close any streams body opens before it returns, because committing closes their cursors.
+     *
+     * @param isolation The isolation level of the transaction, or null for the database's default
+     */
+    public <T> T transaction(Isolation isolation, TransactionBody<T> body) throws SQLException {
+        try (Connection connection = connections.open()) {
+            connection.setAutoCommit(false);
+
+            Throwable failure = null;
+
+            try {
+                if (isolation != null) {
+                    try (java.sql.Statement begin = connection.createStatement()) {
+                        begin.execute("SET TRANSACTION ISOLATION LEVEL " + isolation.sql);
+                    }
+                }
+
+                Transaction transaction = new Transaction(connection);
+                T result;
+
+                try {
+                    result = body.apply(transaction);
+                } finally {
+                    transaction.finished = true;
+                }
+
+                connection.commit();
+
+                return result;
+            } catch (SQLException | RuntimeException | Error e) {
+                failure = e;
+
+                try {
+                    connection.rollback();
+                } catch (SQLException rollback) {
+                    e.addSuppressed(rollback);
+                }
+
+                throw e;
+            } finally {
+                restoreAutoCommit(connection, failure);
+            }
+        }
     }
 
-    // TODO transaction()
+    /**
+     * Turn auto-commit back on after a transaction.
+     * If the transaction already failed with {@code failure}, a failure here is added to it instead of replacing it.
+     */
+    private static void restoreAutoCommit(Connection connection, Throwable failure) throws SQLException {
+        try {
+            connection.setAutoCommit(true);
+        } catch (SQLException | RuntimeException e) {
+            if (failure == null)
+                throw e;
+
+            failure.addSuppressed(e);
+        }
+    }
+
+    /**
+     * Run end after the failure of something else, adding any failure of end to that one
+     */
+    private static void cleanUpAfter(Throwable failure, SqlAction end) {
+        try {
+            end.run();
+        } catch (SQLException | RuntimeException e) {
+            failure.addSuppressed(e);
+        }
+    }
+
+    @FunctionalInterface
+    private interface SqlAction {
+        void run() throws SQLException;
+    }
+
+    public enum Isolation {
+        READ_COMMITTED("READ COMMITTED"),
+        REPEATABLE_READ("REPEATABLE READ"),
+        SERIALIZABLE("SERIALIZABLE");
+
+        private final String sql;
+
+        Isolation(String sql) {
+            this.sql = sql;
+        }
+    }
+
+    @FunctionalInterface
+    public interface TransactionBody<T> {
+        public T apply(Transaction transaction) throws SQLException;
+    }
+
+    /**
+     * Queries and statements that all run on the connection of one transaction
+     */
+    public class Transaction {
+        private final Sql sql;
+        private volatile boolean finished = false;
+
+        private Transaction(Connection connection) {
+            this.sql = new Sql(() -> {
+                if (finished)
+                    throw new SQLException("Transaction is over");
+
+                // Queries close their connection when they're done; the transaction closes the real one
+                return LentConnection.lend(connection, lent -> {});
+            }, timeZone, metaDataCache, parameterCache, schemaVersion, statements, fetchSize, adaptiveFetchSize, materializeBudget);
+        }
+
+        public DirectQuery query(@Language("SQL") String sql) throws SQLException {
+            return this.sql.query(sql);
+        }
+
+        public <T> Query<T> query(@Language("SQL") String sql, Class<T> type) throws SQLException {
+            return this.sql.query(sql, type);
+        }
+
+        public Statement statement(@Language("SQL") String sql) throws SQLException {
+            return this.sql.statement(sql);
+        }
+
+        public Batch batch(@Language("SQL") String sql) throws SQLException {
+            return this.sql.statement(sql).batch();
+        }
+
+        public <T> long copyIn(String table, Class<T> type, Stream<T> rows) throws SQLException {
+            return this.sql.copyIn(table, type, rows);
+        }
+
+        public long copyIn(String table, List<String> columns, Iterator<? extends Map<String, ?>> rows) throws SQLException {
+            return this.sql.copyIn(table, columns, rows);
+        }
+
+        public CopyResult copyOut(@Language("SQL") String query, CopyFormat format, OutputStream to) throws SQLException, IOException {
+            return this.sql.copyOut(query, format, to);
+        }
+
+        public CopyResult copyOut(@Language("SQL") String query, CopyFormat format, WritableByteChannel to) throws SQLException, IOException {
+            return this.sql.copyOut(query, format, to);
+        }
+    }
+
+    /**
+     * Start a transaction and export its snapshot, so several connections can read the database as it is at this moment.
+     * Queries and statements run through {@link Snapshot#sql()} each get their own connection, in a read-only transaction
+     * that imports the snapshot, so they can run in parallel and still agree with each other.
+     * Closing the snapshot ends the exporting transaction, and any worker transactions that are still open.
+     */
+    public Snapshot exportSnapshot() throws SQLException {
+        Connection coordinator = connections.open();
+
+        try {
+            coordinator.setAutoCommit(false);
+
+            try (java.sql.Statement begin = coordinator.createStatement()) {
+                begin.execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ");
+
+                try (ResultSet id = begin.executeQuery("SELECT pg_export_snapshot()")) {
+                    id.next();
+
+                    return new Snapshot(coordinator, id.getString(1));
+                }
+            }
+        } catch (SQLException | RuntimeException e) {
+            cleanUpAfter(e, () -> endSnapshot(coordinator));
+
+            throw e;
+        }
+    }
+
+    /**
+     * Roll back a snapshot transaction, which can only have read, and give the connection back
+     */
+    private static void endSnapshot(Connection connection) throws SQLException {
+        try (Connection closeMe = connection) {
+            Throwable failure = null;
+
+            try {
+                connection.rollback();
+            } catch (SQLException | RuntimeException e) {
+                failure = e;
+
+                throw e;
+            } finally {
+                restoreAutoCommit(connection, failure);
+            }
+        }
+    }
+
+    public class Snapshot implements AutoCloseable {
+        private final Connection coordinator;
+        private final String id;
+        private final Set<Connection> workers = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        private final Sql sql;
+        private volatile boolean closed = false;
+
+        private Snapshot(Connection coordinator, String id) {
+            this.coordinator = coordinator;
+            this.id = id;
+            this.sql = new Sql(this::openWorker, timeZone, metaDataCache, parameterCache, schemaVersion, statements, fetchSize, adaptiveFetchSize, materializeBudget);
+        }
+
+        /**
+         * The name Postgres gave the snapshot, for {@code SET TRANSACTION SNAPSHOT}
+         */
+        public String id() {
+            return id;
+        }
+
+        /**
+         * Runs each query and statement on its own connection, reading this snapshot
+         */
+        public Sql sql() {
+            return sql;
+        }
+
+        private Connection openWorker() throws SQLException {
+            if (closed)
+                throw new SQLException("Snapshot " + id + " is closed");
+
+            Connection connection = connections.open();
+
+            try {
+                connection.setAutoCommit(false);
+
+                try (java.sql.Statement begin = connection.createStatement()) {
+                    begin.execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ READ ONLY");
+                    begin.execute("SET TRANSACTION SNAPSHOT '" + id + "'");
+                }
+            } catch (SQLException | RuntimeException e) {
+                cleanUpAfter(e, () -> endSnapshot(connection));
+
+                throw e;
+            }
+
+            workers.add(connection);
+
+            return LentConnection.lend(connection, worker -> {
+                if (workers.remove(worker))
+                    endSnapshot(worker);
+            });
+        }
+
+        /**
+         * End every worker transaction that is still open, then the exporting transaction
+         */
+        @Override
+        public void close() throws SQLException {
+            closed = true;
+
+            SQLException failure = null;
+
+            for (Connection worker : workers) {
+                try {
+                    if (workers.remove(worker))
+                        endSnapshot(worker);
+                } catch (SQLException e) {
+                    if (failure == null)
+                        failure = e;
+                    else
+                        failure.addSuppressed(e);
+                }
+            }
+
+            try {
+                endSnapshot(coordinator);
+            } catch (SQLException e) {
+                if (failure == null)
+                    failure = e;
+                else
+                    failure.addSuppressed(e);
+            }
+
+            if (failure != null)
+                throw failure;
+        }
+    }
 
     public DirectQuery query(@Language("SQL") String sql) throws SQLException {
-        ParsedSql parsedSql = NamedParameters.parseSqlStatement(sql);
-        String niceSql = NamedParameters.substituteNamedParameters(parsedSql);
+        Parsed parsed = parse(sql);
+        ParsedSql parsedSql = parsed.parsedSql;
+        String niceSql = parsed.niceSql;
 
         return new DirectQuery(parsedSql, niceSql) {
             @Override
             public ResultSet execute(Object... parameters) throws SQLException {
-                return withConnection(connection -> {
-                    PreparedStatement query = connection.prepareStatement(niceSql);
-                    populate(connection, query, parameters);
+                return withStatement(niceSql, (connection, query) -> {
+                    populate(connection, query, niceSql, parameters);
                     ResultSet delegate = query.executeQuery();
-                    ResultSet closeable = new ResultSetConnection(delegate, connection);
+                    ResultSet closeable = new ResultSetConnection(delegate, connection, () -> statements.release(niceSql, query));
 
                     return new FixDates(closeable);
                 });
@@ -77,36 +498,318 @@ public class Sql {
      * @throws SQLException
      */
     public <T> Query<T> query(@Language("SQL") String sql, Class<T> type) throws SQLException {
-        ParsedSql parsedSql = NamedParameters.parseSqlStatement(sql);
-        String niceSql = NamedParameters.substituteNamedParameters(parsedSql);
+        Parsed parsed = parse(sql);
+        ParsedSql parsedSql = parsed.parsedSql;
+        String niceSql = parsed.niceSql;
 
         ResultSetMetaData schema = metadata(niceSql);
         ToJava<T> coerce = toJava(schema, type);
 
-        return new Query<T>(parsedSql, niceSql) {
-            @Override
-            public Stream<T> execute(Object... parameters) throws SQLException {
-                return withConnection(connection -> {
-                    PreparedStatement query = connection.prepareStatement(niceSql);
-                    populate(connection, query, parameters);
+        return new RowQuery<>(parsedSql, niceSql, fetchSize, null, null, coerce);
+    }
 
-                    return stream(connection, query, coerce::coerce);
-                });
+    /**
+     * Create a query of one bigint column, which reads each value straight into a {@code LongStream} without boxing it.
+     * <pre>
+     * {@code
+     * try (LongStream ids = queryLongs("SELECT id FROM table").execute()) {
+     *     return ids.toArray();
+     * }
+     * }</pre>
+     */
+    public LongQuery queryLongs(@Language("SQL") String sql) throws SQLException {
+        Parsed parsed = parse(sql);
+
+        checkOneColumn(parsed.niceSql);
+
+        return new LongQuery(parsed.parsedSql, parsed.niceSql, fetchSize);
+    }
+
+    /**
+     * Create a query of one integer column, like {@link #queryLongs}
+     */
+    public IntQuery queryInts(@Language("SQL") String sql) throws SQLException {
+        Parsed parsed = parse(sql);
+
+        checkOneColumn(parsed.niceSql);
+
+        return new IntQuery(parsed.parsedSql, parsed.niceSql, fetchSize);
+    }
+
+    /**
+     * Create a query of one numeric column, like {@link #queryLongs}
+     */
+    public DoubleQuery queryDoubles(@Language("SQL") String sql) throws SQLException {
+        Parsed parsed = parse(sql);
+
+        checkOneColumn(parsed.niceSql);
+
+        return new DoubleQuery(parsed.parsedSql, parsed.niceSql, fetchSize);
+    }
+
+    private void checkOneColumn(String niceSql) throws SQLException {
+        ResultSetMetaData schema = metadata(niceSql);
+
+        if (schema.getColumnCount() != 1)
+            throw new SqlMappingException("Expected 1 column but found " + schema.getColumnCount());
+    }
+
+    /**
+     * A query whose rows are converted to Java by coerce
+     */
+    private class RowQuery<T> extends Query<T> {
+        private final Prefetching prefetch;
+        private final Parallel parallel;
+        private final ToJava<T> coerce;
+
+        RowQuery(ParsedSql parsedSql, String niceSql, int fetchSize, Prefetching prefetch, Parallel parallel, ToJava<T> coerce) {
+            super(parsedSql, niceSql, fetchSize);
+
+            this.prefetch = prefetch;
+            this.parallel = parallel;
+            this.coerce = coerce;
+        }
+
+        @Override
+        public Stream<T> execute(Object... parameters) throws SQLException {
+            return withStatement(sql, (connection, query) -> {
+                populate(connection, query, sql, parameters);
+
+                return stream(connection, query, sql, fetchSize, prefetch, parallel, coerce);
+            });
+        }
+
+        @Override
+        public Query<T> withFetchSize(int fetchSize) {
+            return new RowQuery<>(parsed, sql, fetchSize, prefetch, parallel, coerce);
+        }
+
+        /**
+         * Keep the values {@link ToJava.Staged#copy} takes out of each row, so replaying them only repeats {@link ToJava.Staged#convert}
+         */
+        @Override
+        public Materialized<T> materialize(Object... parameters) throws SQLException, IOException {
+            if (!(coerce instanceof ToJava.Staged))
+                return super.materialize(parameters);
+
+            ToJava.Staged<T> staged = (ToJava.Staged<T>) coerce;
+
+            try (Stream<Object[]> copies = withStatement(sql, (connection, query) -> {
+                populate(connection, query, sql, parameters);
+
+                return stream(connection, query, sql, fetchSize, null, null, staged::copy);
+            })) {
+                return Materialized.of(copies.iterator(), staged::convert, materializeBudget);
             }
-        };
+        }
+
+        @Override
+        public Query<T> prefetch(int bufferSize, Executor threads) {
+            return new RowQuery<>(parsed, sql, fetchSize, bufferSize > 0 ? new Prefetching(bufferSize, threads) : null, parallel, coerce);
+        }
+
+        @Override
+        public Query<T> parallel(ForkJoinPool pool, int chunkSize, boolean ordered) {
+            return new RowQuery<>(parsed, sql, fetchSize, prefetch, new Parallel(pool, chunkSize, ordered), coerce);
+        }
+    }
+
+    /**
+     * How to read rows ahead of the consumer, see {@link Query#prefetch(int, Executor)}
+     */
+    private static class Prefetching {
+        final int bufferSize;
+        final Executor threads;
+
+        Prefetching(int bufferSize, Executor threads) {
+            this.bufferSize = bufferSize;
+            this.threads = threads;
+        }
+    }
+
+    /**
+     * How to convert rows on a fork-join pool, see {@link Query#parallel}
+     */
+    private static class Parallel {
+        final ForkJoinPool pool;
+        final int chunkSize;
+        final boolean ordered;
+
+        Parallel(ForkJoinPool pool, int chunkSize, boolean ordered) {
+            if (chunkSize < 1)
+                throw new IllegalArgumentException("Chunk size must be positive but was " + chunkSize);
+
+            this.pool = pool;
+            this.chunkSize = chunkSize;
+            this.ordered = ordered;
+        }
+    }
+
+    private static class Parsed {
+        final ParsedSql parsedSql;
+        final String niceSql;
+
+        Parsed(String sql) {
+            this.parsedSql = NamedParameters.parseSqlStatement(sql);
+            this.niceSql = NamedParameters.substituteNamedParameters(parsedSql);
+        }
+    }
+
+    /**
+     * Locate the named parameters in {@code sql} and substitute JDBC placeholders,
+     * re-using the result if we have already seen the same text
+     */
+    private static Parsed parse(String sql) {
+        Parsed parsed = parsedSqlCache.getIfPresent(sql);
+
+        if (parsed == null) {
+            parsed = new Parsed(sql);
+
+            parsedSqlCache.put(sql, parsed);
+        }
+
+        return parsed;
+    }
+
+    /**
+     * Hits, misses and evictions of the parsed-SQL cache, which is shared by all Sql instances
+     */
+    public static CacheStats parsedSqlStats() {
+        return parsedSqlCache.stats();
+    }
+
+    /**
+     * Split the keys [from, to) into n ranges of about the same size, as {lower, upper} parameters for {@link Query#executePartitioned}.
+     * Fewer than n ranges are returned if there are fewer than n keys.
+     */
+    public static List<Object[]> keyRanges(long from, long to, int n) {
+        if (n < 1)
+            throw new IllegalArgumentException("Number of ranges must be positive but was " + n);
+
+        // The number of keys can be anything up to 2^64 - 1, so treat it as unsigned
+        long size = to > from ? to - from : 0;
+        long ranges = Math.max(1, Long.compareUnsigned(size, n) < 0 ? size : n);
+        List<Object[]> result = new ArrayList<>();
+
+        for (long i = 0; i < ranges; i++)
+            result.add(new Object[]{from + offset(size, i, ranges), from + offset(size, i + 1, ranges)});
+
+        return result;
+    }
+
+    /**
+     * size * i / ranges, without overflowing, for an unsigned size and 0 <= i <= ranges <= Integer.MAX_VALUE
+     */
+    private static long offset(long size, long i, long ranges) {
+        long quotient = Long.divideUnsigned(size, ranges);
+        long remainder = Long.remainderUnsigned(size, ranges);
+
+        return quotient * i + remainder * i / ranges;
+    }
+
+    private static ExecutorService prefetchThreads() {
+        ThreadPoolExecutor threads = new ThreadPoolExecutor(PREFETCH_THREADS,
+                                                            PREFETCH_THREADS,
+                                                            60,
+                                                            TimeUnit.SECONDS,
+                                                            new LinkedBlockingQueue<>(),
+                                                            new ThreadFactoryBuilder().setNameFormat("sql-prefetch-%d")
+                                                                                      .setDaemon(true)
+                                                                                      .build());
+
+        threads.allowCoreThreadTimeOut(true);
+
+        return threads;
+    }
+
+    private static <V> Cache<String, V> metaDataCache(long size) {
+        return CacheBuilder.newBuilder()
+                           .maximumSize(size)
+                           .recordStats()
+                           .build();
+    }
+
+    private static class CachedMetaData {
+        final ResultSetMetaData metaData;
+        final long schemaVersion;
+
+        CachedMetaData(ResultSetMetaData metaData, long schemaVersion) {
+            this.metaData = metaData;
+            this.schemaVersion = schemaVersion;
+        }
     }
 
-    private Cache<String, ResultSetMetaData> metaDataCache = CacheBuilder.newBuilder()
-                                                                         .weakKeys()
-                                                                         .build();
+    private static class CachedParameters {
+        final Coerce.JavaToSql[] binders;
+        final long schemaVersion;
+
+        CachedParameters(Coerce.JavaToSql[] binders, long schemaVersion) {
+            this.binders = binders;
+            this.schemaVersion = schemaVersion;
+        }
+    }
 
+    /**
+     * Describe the columns that {@code sql} will return, using a cached description if we have one.
+     * Cached entries are keyed by the text of {@code sql}, and discarded if they were described under an older schema version.
+     */
     public ResultSetMetaData metadata(String sql) throws SQLException {
+        long version = schemaVersion.getAsLong();
+        CachedMetaData cached = describe(sql, version);
+
+        if (cached.schemaVersion != version) {
+            metaDataCache.asMap().remove(sql, cached);
+
+            cached = describe(sql, version);
+        }
+
+        return cached.metaData;
+    }
+
+    /**
+     * Forget the cached metadata for {@code sql}, for example after altering a table it reads
+     */
+    public void invalidateMetadata(@Language("SQL") String sql) {
+        String niceSql = parse(sql).niceSql;
+
+        metaDataCache.invalidate(sql);
+        metaDataCache.invalidate(niceSql);
+        parameterCache.invalidate(niceSql);
+    }
+
+    /**
+     * Forget all cached metadata, for example after running migrations
+     */
+    public void invalidateMetadata() {
+        metaDataCache.invalidateAll();
+        parameterCache.invalidateAll();
+    }
+
+    /**
+     * Hits, misses and evictions of the metadata cache
+     */
+    public CacheStats metadataStats() {
+        return metaDataCache.stats();
+    }
+
+    /**
+     * Hits, misses and evictions of the parameter metadata cache
+     */
+    public CacheStats parameterMetadataStats() {
+        return parameterCache.stats();
+    }
+
+    private CachedMetaData describe(String sql, long version) throws SQLException {
         try {
             return metaDataCache.get(sql, () -> {
-                try (Connection connection = open(database);
-                     PreparedStatement statement = connection.prepareStatement(sql)) {
+                try (Connection connection = connections.open()) {
+                    PreparedStatement statement = statements.prepare(connection, sql);
 
-                    return statement.getMetaData();
+                    try {
+                        return new CachedMetaData(statement.getMetaData(), version);
+                    } finally {
+                        statements.release(sql, statement);
+                    }
                 }
             });
         } catch (ExecutionException e) {
@@ -125,23 +828,251 @@ public class Sql {
      * @throws SQLException
      */
     public Statement statement(@Language("SQL") String sql) throws SQLException {
-        ParsedSql parsedSql = NamedParameters.parseSqlStatement(sql);
-        String niceSql = NamedParameters.substituteNamedParameters(parsedSql);
+        Parsed parsed = parse(sql);
+        ParsedSql parsedSql = parsed.parsedSql;
+        String niceSql = parsed.niceSql;
 
         return new Statement(parsedSql, niceSql) {
             @Override
             public boolean execute(Object... parameters) throws SQLException {
-                try (Connection connection = open(database);
-                     PreparedStatement query = connection.prepareStatement(niceSql)) {
+                try (Connection connection = connections.open()) {
+                    PreparedStatement query = statements.prepare(connection, niceSql);
+                    boolean result;
+
+                    try {
+                        populate(connection, query, niceSql, parameters);
+
+                        result = query.execute();
+                    } catch (SQLException | RuntimeException e) {
+                        query.close();
 
-                    populate(connection, query, parameters);
+                        throw e;
+                    }
+
+                    statements.release(niceSql, query);
 
-                    return query.execute();
+                    return result;
                 }
             }
         };
     }
 
+    /**
+     * Load rows into table with {@code COPY FROM STDIN}, which is much faster than inserting them.
+     * Each public field of T is a column, named by its {@link SqlAttribute} or by the field name,
+     * and values are converted to the types of the columns like parameters are.
+     * Rows are encoded into a buffer that is sent each time it fills up, so rows can be streamed from anywhere.
+     * Null values are loaded as SQL NULL, whatever the type of the column.
+     *
+     * @param table The name of the table, written into the SQL as it is, so it must be a trusted SQL identifier,
+     *              optionally qualified by its schema and quoted where needed, like {@code "My Schema".events}
+     * @return The number of rows loaded
+     */
+    public <T> long copyIn(String table, Class<T> type, Stream<T> rows) throws SQLException {
+        FromJavaPojo<T> fields = new FromJavaPojo<>(type);
+        Iterator<T> it = rows.iterator();
+
+        return copyIn(table, fields.columns(), new CopyRows() {
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public Object[] next() throws SQLException {
+                return fields.values(it.next());
+            }
+        });
+    }
+
+    /**
+     * Load rows into the {@code columns} of table with {@code COPY FROM STDIN}, like {@link #copyIn(String, Class, Stream)}.
+     * Missing keys are loaded as null. Column names are quoted for you, but table is written into the SQL as it is.
+     */
+    public long copyIn(String table, List<String> columns, Iterator<? extends Map<String, ?>> rows) throws SQLException {
+        String[] names = columns.toArray(new String[columns.size()]);
+
+        return copyIn(table, names, new CopyRows() {
+            @Override
+            public boolean hasNext() {
+                return rows.hasNext();
+            }
+
+            @Override
+            public Object[] next() {
+                Map<String, ?> row = rows.next();
+                Object[] values = new Object[names.length];
+
+                for (int i = 0; i < names.length; i++)
+                    values[i] = row.get(names[i]);
+
+                return values;
+            }
+        });
+    }
+
+    private static interface CopyRows {
+        public boolean hasNext();
+
+        public Object[] next() throws SQLException;
+    }
+
+    private long copyIn(String table, String[] columns, CopyRows rows) throws SQLException {
+        StringBuilder columnList = new StringBuilder();
+
+        for (String column : columns) {
+            if (columnList.length() > 0)
+                columnList.append(", ");
+
+            columnList.append('"').append(column.replace("\"", "\"\"")).append('"');
+        }
+
+        // Describe the columns without reading the table, so we can convert values like parameters
+        ResultSetMetaData types = metadata("SELECT " + columnList + " FROM " + table);
+        Coerce.JavaToSql[] binders = new Coerce.JavaToSql[columns.length];
+
+        for (int i = 0; i < binders.length; i++)
+            binders[i] = Coerce.javaToSql(types.getColumnType(i + 1), types.getColumnTypeName(i + 1));
+
+        try (Connection connection = connections.open()) {
+            CopyIn copy = connection.unwrap(PGConnection.class)
+                                    .getCopyAPI()
+                                    .copyIn("COPY " + table + " (" + columnList + ") FROM STDIN");
+            CopyWriter writer = new CopyWriter(copy, COPY_BUFFER_SIZE, ZoneId.systemDefault());
+
+            try {
+                while (rows.hasNext()) {
+                    Object[] values = rows.next();
+
+                    // Binders coerce values that are there; some of them, like json's, would turn null into something else
+                    for (int i = 0; i < values.length; i++)
+                        values[i] = values[i] == null ? null : binders[i].apply(connection, values[i]);
+
+                    writer.row(values);
+                }
+
+                return writer.finish();
+            } catch (SQLException | RuntimeException e) {
+                if (copy.isActive())
+                    cleanUpAfter(e, copy::cancelCopy);
+
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Write the result of query to {@code to} with {@code COPY ... TO STDOUT}, without converting it to Java objects.
+     * Each chunk the server sends is written as it arrives. COPY doesn't take parameters, so query can't have any.
+     */
+    public CopyResult copyOut(@Language("SQL") String query, CopyFormat format, OutputStream to) throws SQLException, IOException {
+        return copyOut(query, format, chunk -> to.write(chunk));
+    }
+
+    /**
+     * Write the result of query to {@code to}, like {@link #copyOut(String, CopyFormat, OutputStream)}
+     */
+    public CopyResult copyOut(@Language("SQL") String query, CopyFormat format, WritableByteChannel to) throws SQLException, IOException {
+        return copyOut(query, format, chunk -> {
+            ByteBuffer buffer = ByteBuffer.wrap(chunk);
+
+            while (buffer.hasRemaining())
+                to.write(buffer);
+        });
+    }
+
+    @FunctionalInterface
+    private static interface CopyTarget {
+        public void write(byte[] chunk) throws IOException;
+    }
+
+    private CopyResult copyOut(String query, CopyFormat format, CopyTarget to) throws SQLException, IOException {
+        try (Connection connection = connections.open()) {
+            CopyOut copy = connection.unwrap(PGConnection.class)
+                                     .getCopyAPI()
+                                     .copyOut("COPY (" + query + ") TO STDOUT WITH (" + format.options + ")");
+            long bytes = 0;
+
+            try {
+                // The driver hands us each message it reads from the socket, so we pass it on without copying it again
+                for (byte[] chunk = copy.readFromCopy(); chunk != null; chunk = copy.readFromCopy()) {
+                    to.write(chunk);
+                    bytes += chunk.length;
+                }
+
+                return new CopyResult(copy.getHandledRowCount(), bytes);
+            } catch (SQLException | IOException | RuntimeException e) {
+                if (copy.isActive())
+                    cleanUpAfter(e, copy::cancelCopy);
+
+                throw e;
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private static interface Export {
+        public long write(RowWriter writer, ResultSet rows) throws SQLException, IOException;
+    }
+
+    /**
+     * Run sql and hand its rows to export, through a cursor if fetchSize is positive, like {@link Query#execute}.
+     * Rows go straight from the ResultSet to the output, so nothing is converted to Java objects.
+     */
+    private long export(String sql, int fetchSize, Object[] parameters, Export export) throws SQLException, IOException {
+        try (Connection connection = connections.open()) {
+            PreparedStatement statement = statements.prepare(connection, sql);
+            boolean succeeded = false;
+
+            try {
+                populate(connection, statement, sql, parameters);
+
+                boolean cursor = fetchSize > 0 && connection.getAutoCommit();
+
+                if (cursor)
+                    connection.setAutoCommit(false);
+
+                statement.setFetchSize(fetchSize);
+
+                try {
+                    ResultSet raw = statement.executeQuery();
+                    AdaptiveFetchSize.Tracker fetchSizes = fetchSize > 0 && adaptiveFetchSize != null ? adaptiveFetchSize.track(fetchSize) : null;
+                    long count;
+
+                    // Size the batches of the cursor as it's read, like a stream does
+                    try (ResultSet rows = fetchSizes == null ? new FixDates(raw) : new FixDates(raw) {
+                        @Override
+                        public boolean next() throws SQLException {
+                            return fetchSizes.next(raw);
+                        }
+                    }) {
+                        count = export.write(new RowWriter(rows.getMetaData()), rows);
+                    }
+
+                    if (cursor) {
+                        cursor = false;
+                        endCursor(connection, true);
+                    }
+
+                    succeeded = true;
+
+                    return count;
+                } catch (SQLException | IOException | RuntimeException e) {
+                    // Unless it was ending the cursor that failed
+                    if (cursor)
+                        cleanUpAfter(e, () -> endCursor(connection, false));
+
+                    throw e;
+                }
+            } finally {
+                if (succeeded)
+                    statements.release(sql, statement);
+                else
+                    statement.close();
+            }
+        }
+    }
+
     /**
      * Execute body with a connection open
      * If body succeeds, return its result
@@ -156,7 +1087,7 @@ public class Sql {
         boolean succeeded = false;
 
         try {
-            connection = open(database);
+            connection = connections.open();
             T result = body.execute(connection);
             succeeded = true;
 
@@ -167,11 +1098,51 @@ public class Sql {
         }
     }
 
+    /**
+     * Where a Sql gets its connections: a DataSource, or something that lends out connections of its own, like a snapshot
+     */
+    @FunctionalInterface
+    private static interface Connections {
+        public Connection open() throws SQLException;
+    }
+
     @FunctionalInterface
     private static interface SafeConnection<T> {
         public T execute(Connection connection) throws SQLException;
     }
 
+    /**
+     * Execute body with a connection open and sql prepared on it
+     * If body succeeds, return its result, which is now responsible for releasing the statement and closing the connection
+     * If body throws an exception, close the statement and the connection and re-throw
+     *
+     * @param sql The JDBC SQL to prepare, possibly re-using a cached statement
+     * @param body A closure that produces an AutoCloseable which releases statement and closes connection
+     * @param <T> The result of evaluating body
+     * @return Body, evaluated with a statement, safely
+     */
+    private <T extends AutoCloseable> T withStatement(String sql, SafeStatement<T> body) throws SQLException {
+        return withConnection(connection -> {
+            PreparedStatement statement = statements.prepare(connection, sql);
+            boolean succeeded = false;
+
+            try {
+                T result = body.execute(connection, statement);
+                succeeded = true;
+
+                return result;
+            } finally {
+                if (!succeeded)
+                    statement.close();
+            }
+        });
+    }
+
+    @FunctionalInterface
+    private static interface SafeStatement<T> {
+        public T execute(Connection connection, PreparedStatement statement) throws SQLException;
+    }
+
     private <T> ToJava<T> toJava(ResultSetMetaData schema, Class<T> type) throws SQLException {
         if (type == Map.class)
             return (ToJava<T>) new ToJavaMap(schema);
@@ -179,89 +1150,353 @@ public class Sql {
             return new ToJavaPojo<T>(schema, type);
     }
 
+    /**
+     * @param fetchSize If positive, read the result through a cursor, fetchSize rows at a time
+     * @param prefetch If not null, read and convert rows ahead of the consumer, on another thread
+     * @param parallel If not null, convert rows on a fork-join pool
+     */
     private <T> Stream<T> stream(Connection connection,
                                  PreparedStatement statement,
-                                 RowFunction<T> rowFunction) throws SQLException {
-        FixDates fixDates = new FixDates(statement.executeQuery());
+                                 String sql,
+                                 int fetchSize,
+                                 Prefetching prefetch,
+                                 Parallel parallel,
+                                 ToJava<T> toJava) throws SQLException {
+        boolean cursor = fetchSize > 0 && connection.getAutoCommit();
+
+        // Postgres only reads results through a cursor inside a transaction; if we are already in one, its owner ends it
+        if (cursor)
+            connection.setAutoCommit(false);
+
+        statement.setFetchSize(fetchSize);
+
+        try {
+            FixDates fixDates = new FixDates(statement.executeQuery());
+
+            AdaptiveFetchSize.Tracker fetchSizes = fetchSize > 0 && adaptiveFetchSize != null ? adaptiveFetchSize.track(fetchSize) : null;
 
-        return stream(connection, statement, fixDates, rowFunction);
+            return stream(connection, statement, sql, cursor, fixDates, fetchSizes, prefetch, parallel, toJava);
+        } catch (SQLException | RuntimeException e) {
+            if (cursor)
+                cleanUpAfter(e, () -> endCursor(connection, false));
+
+            throw e;
+        }
     }
 
+    /**
+     * @param sql The text {@code statement} was cached under, or null if it wasn't prepared by the statement cache
+     * @param cursor True if resultSet is a cursor in a transaction that we need to end when the stream is closed
+     * @param fetchSizes Adjusts the fetch size of resultSet as it is read, or null to keep it fixed
+     * @param prefetch If not null, read and convert rows ahead of the consumer, on another thread
+     * @param parallel If not null, and toJava can be staged, copy rows out of resultSet in chunks and convert them on a fork-join pool
+     */
     private <T> Stream<T> stream(Connection connection,
                                  PreparedStatement statement,
+                                 String sql,
+                                 boolean cursor,
                                  ResultSet resultSet,
-                                 RowFunction<T> rowFunction) {
-        Iterator<T> it = new Iterator<T>() {
-            /**
-             * true if we know there is a next row
-             */
-            boolean waiting = false;
-            /**
-             * true if we know there isn't a next row
-             */
-            boolean empty = false;
+                                 AdaptiveFetchSize.Tracker fetchSizes,
+                                 Prefetching prefetch,
+                                 Parallel parallel,
+                                 ToJava<T> toJava) {
+        Rows<?> it;
+        Iterator<T> converted;
+        ParallelCoerce<T> chunks = null;
+
+        if (parallel != null && toJava instanceof ToJava.Staged) {
+            ToJava.Staged<T> staged = (ToJava.Staged<T>) toJava;
+            Rows<Object[]> copies = new Rows<>(resultSet, fetchSizes, staged::copy);
+
+            chunks = new ParallelCoerce<>(copies, staged, parallel.chunkSize, parallel.ordered, parallel.pool);
+            it = copies;
+            converted = chunks;
+        }
+        else {
+            Rows<T> rows = new Rows<>(resultSet, fetchSizes, toJava::coerce);
 
-            @Override
-            public boolean hasNext() {
+            it = rows;
+            converted = rows;
+        }
+
+        Prefetch<T> ahead = prefetch != null ? new Prefetch<>(converted, prefetch.bufferSize, prefetch.threads) : null;
+        Iterator<T> consumed = ahead != null ? ahead : converted;
+        int characteristics = parallel != null && !parallel.ordered ? 0 : Spliterator.ORDERED;
+        Stream<T> rows = StreamSupport.stream(Spliterators.spliteratorUnknownSize(consumed, characteristics), false);
+        ParallelCoerce<T> pending = chunks;
+
+        return new CloseableStream<>(rows, () -> closeRows(connection, statement, sql, cursor, () -> it.empty && !it.failed, () -> {
+            // Stop reading ahead before we close the result set under the reading thread
+            if (ahead != null)
+                ahead.close();
+
+            if (pending != null)
+                pending.close();
+
+            resultSet.close();
+        }));
+    }
+
+    /**
+     * Close the rows of a stream, then end its cursor, give back its statement and close its connection,
+     * even if one of the steps before fails.
+     * After a failure the statement is closed instead of going back to the cache, like {@link #export}.
+     *
+     * @param finished Whether every row was read, asked after closeRows
+     */
+    private void closeRows(Connection connection,
+                           PreparedStatement statement,
+                           String sql,
+                           boolean cursor,
+                           BooleanSupplier finished,
+                           SqlAction closeRows) throws SQLException {
+        Throwable failure = null;
+        boolean closed = false;
+
+        try {
+            closeRows.run();
+            closed = true;
+
+            if (cursor)
+                endCursor(connection, finished.getAsBoolean());
+        } catch (SQLException | RuntimeException e) {
+            failure = e;
+
+            // Unless it was ending the cursor that failed
+            if (cursor && !closed)
+                cleanUpAfter(e, () -> endCursor(connection, false));
+
+            throw e;
+        } finally {
+            if (failure != null) {
+                cleanUpAfter(failure, statement::close);
+                cleanUpAfter(failure, connection::close);
+            }
+            else {
                 try {
-                    // If stream is empty, return false
-                    if (empty)
-                        return false;
-                        // If there is a waiting element in resultSet, return true
-                    else if (waiting)
-                        return true;
-                        // If we succeed in advancing the cursor, note there is a waiting element
-                    else if (resultSet.next()) {
-                        waiting = true;
-
-                        return true;
-                    }
-                    // If we fail to advance the cursor, note the stream is empty
-                    else {
-                        empty = true;
+                    statements.release(sql, statement);
+                } finally {
+                    connection.close();
+                }
+            }
+        }
+    }
 
-                        return false;
-                    }
-                } catch (SQLException e) {
+    @FunctionalInterface
+    private static interface OpenCursor<C extends RowCursor> {
+        public C open(ResultSet resultSet, AdaptiveFetchSize.Tracker fetchSizes) throws SQLException;
+    }
+
+    @FunctionalInterface
+    private static interface CursorStream<C extends RowCursor, S> {
+        public S stream(C cursor, AutoCloseable close);
+    }
+
+    /**
+     * Like {@link #stream(Connection, PreparedStatement, String, int, Prefetching, Parallel, ToJava)},
+     * but reads the ResultSet with a cursor of our own, like a primitive column or column batches,
+     * instead of converting each row to a Java object
+     */
+    private <C extends RowCursor, S> S read(Connection connection,
+                                            PreparedStatement statement,
+                                            String sql,
+                                            int fetchSize,
+                                            OpenCursor<C> open,
+                                            CursorStream<C, S> toStream) throws SQLException {
+        boolean cursor = fetchSize > 0 && connection.getAutoCommit();
+
+        if (cursor)
+            connection.setAutoCommit(false);
+
+        statement.setFetchSize(fetchSize);
+
+        try {
+            ResultSet resultSet = statement.executeQuery();
+            AdaptiveFetchSize.Tracker fetchSizes = fetchSize > 0 && adaptiveFetchSize != null ? adaptiveFetchSize.track(fetchSize) : null;
+            C rows = open.open(resultSet, fetchSizes);
+
+            return toStream.stream(rows, () -> closeRows(connection, statement, sql, cursor, () -> rows.empty && !rows.failed, resultSet::close));
+        } catch (SQLException | RuntimeException e) {
+            if (cursor)
+                cleanUpAfter(e, () -> endCursor(connection, false));
+
+            throw e;
+        }
+    }
+
+    /**
+     * End the transaction that held a cursor open.
+     * Commit if we read every row, roll back if the stream failed or was closed early.
+     */
+    private static void endCursor(Connection connection, boolean finished) throws SQLException {
+        Throwable failure = null;
+
+        try {
+            if (finished)
+                connection.commit();
+            else
+                connection.rollback();
+        } catch (SQLException | RuntimeException e) {
+            failure = e;
+
+            throw e;
+        } finally {
+            restoreAutoCommit(connection, failure);
+        }
+    }
+
+    /**
+     * Iterates over resultSet, converting each row with rowFunction
+     */
+    private static class Rows<T> implements Iterator<T> {
+        private final ResultSet resultSet;
+        private final AdaptiveFetchSize.Tracker fetchSizes;
+        private final RowFunction<T> rowFunction;
+        /**
+         * true if we know there is a next row
+         */
+        boolean waiting = false;
+        /**
+         * true if we know there isn't a next row
+         */
+        boolean empty = false;
+        /**
+         * true if reading a row threw an exception
+         */
+        boolean failed = false;
+
+        Rows(ResultSet resultSet, AdaptiveFetchSize.Tracker fetchSizes, RowFunction<T> rowFunction) {
+            this.resultSet = resultSet;
+            this.fetchSizes = fetchSizes;
+            this.rowFunction = rowFunction;
+        }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                // If stream is empty, return false
+                if (empty)
+                    return false;
+                    // If there is a waiting element in resultSet, return true
+                else if (waiting)
+                    return true;
+                    // If we succeed in advancing the cursor, note there is a waiting element
+                else if (fetchSizes == null ? resultSet.next() : fetchSizes.next(resultSet)) {
+                    waiting = true;
+
+                    return true;
+                }
+                // If we fail to advance the cursor, note the stream is empty
+                else {
                     empty = true;
 
-                    throw new RuntimeException(e);
-                }
-            }
+                    return false;
+                }
+            } catch (SQLException e) {
+                empty = true;
+                failed = true;
+
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public T next() {
+            try {
+                waiting = false;
+
+                return rowFunction.apply(resultSet);
+            } catch (SQLException e) {
+                failed = true;
+
+                throw new RuntimeException(e);
+            } catch (RuntimeException e) {
+                failed = true;
+
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * @param sql The text {@code q} was prepared from, used to cache its parameter types, or null to skip the cache
+     * @return Roughly how many bytes of parameters were bound
+     */
+    private long populate(Connection connection, PreparedStatement q, String sql, Object... parameters) throws SQLException {
+        Object[] values = toSql(connection, q, sql, parameters);
+        long bytes = 0;
+
+        for (int i = 0; i < values.length; i++) {
+            q.setObject(i + 1, values[i]);
+            bytes += estimateBytes(values[i]);
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Convert parameters to the SQL types of the parameters of q
+     */
+    private Object[] toSql(Connection connection, PreparedStatement q, String sql, Object... parameters) throws SQLException {
+        Coerce.JavaToSql[] binders = binders(q, sql);
+
+        if (binders.length != parameters.length)
+            throw new SqlMappingException("Expected " + binders.length + " parameters but found " + parameters.length);
 
-            @Override
-            public T next() {
-                try {
-                    waiting = false;
+        Object[] values = new Object[parameters.length];
 
-                    return rowFunction.apply(resultSet);
-                } catch (SQLException e) {
-                    throw new RuntimeException(e);
-                }
-            }
-        };
+        for (int i = 0; i < parameters.length; i++)
+            values[i] = binders[i].apply(connection, parameters[i]);
 
-        Stream<T> rows = StreamSupport.stream(Spliterators.spliteratorUnknownSize(it, Spliterator.ORDERED), false);
+        return values;
+    }
 
-        return new CloseableStream<>(rows, () -> {
-            statement.close();
-            connection.close();
-        });
+    /**
+     * Roughly how much memory the driver needs to hold a bound parameter
+     */
+    private static long estimateBytes(Object value) {
+        if (value == null)
+            return 0;
+        else if (value instanceof CharSequence)
+            return ((CharSequence) value).length();
+        else if (value instanceof byte[])
+            return ((byte[]) value).length;
+        else if (value instanceof PGobject) {
+            String text = ((PGobject) value).getValue();
+
+            return text == null ? 0 : text.length();
+        }
+        else if (value instanceof Array)
+            return value.toString().length();
+        else
+            return 8;
     }
 
-    private void populate(Connection connection, PreparedStatement q, Object... parameters) throws SQLException {
-        ParameterMetaData metaData = q.getParameterMetaData();
+    /**
+     * Find the conversion for each parameter of q.
+     * Describing the parameters can cost a round trip to the database, so we remember them by SQL text.
+     */
+    private Coerce.JavaToSql[] binders(PreparedStatement q, String sql) throws SQLException {
+        long version = schemaVersion.getAsLong();
+        CachedParameters cached = sql == null ? null : parameterCache.getIfPresent(sql);
+
+        if (cached != null && cached.schemaVersion == version)
+            return cached.binders;
 
-        if (metaData.getParameterCount() != parameters.length)
-            throw new SqlMappingException("Expected " + metaData.getParameterCount() + " parameters but found " + parameters.length);
+        ParameterMetaData metaData = q.getParameterMetaData();
+        Coerce.JavaToSql[] binders = new Coerce.JavaToSql[metaData.getParameterCount()];
 
-        for (int i = 0; i < parameters.length; i++) {
+        for (int i = 0; i < binders.length; i++) {
             int typeId = metaData.getParameterType(i + 1);
             String typeName = metaData.getParameterTypeName(i + 1);
-            Object value = Coerce.javaToSql(connection, parameters[i], typeId, typeName);
 
-            q.setObject(i + 1, value);
+            binders[i] = Coerce.javaToSql(typeId, typeName);
         }
+
+        if (sql != null)
+            parameterCache.put(sql, new CachedParameters(binders, version));
+
+        return binders;
     }
 
     /**
@@ -312,6 +1547,25 @@ public class Sql {
          */
         public abstract ResultSet execute(Object... parameters) throws SQLException;
 
+        /**
+         * Run the query and write its rows to {@code to} as newline-delimited JSON.
+         * See {@link RowWriter}.
+         *
+         * @return The number of rows written
+         */
+        public long writeJson(OutputStream to, Object... parameters) throws SQLException, IOException {
+            return export(sql, Sql.this.fetchSize, parameters, (writer, rows) -> writer.writeJsonLines(rows, to));
+        }
+
+        /**
+         * Run the query and write its rows to {@code to} as CSV with a header line
+         *
+         * @return The number of rows written
+         */
+        public long writeCsv(OutputStream to, Object... parameters) throws SQLException, IOException {
+            return export(sql, Sql.this.fetchSize, parameters, (writer, rows) -> writer.writeCsv(rows, to));
+        }
+
         public DirectQueryBuilder put(String paramName, Object paramValue) {
             return new DirectQueryBuilder(this).put(paramName, paramValue);
         }
@@ -338,13 +1592,104 @@ public class Sql {
         }
     }
 
+    /**
+     * A query of one column, read into a primitive stream
+     *
+     * @param <S> The kind of stream, which closes the connection when it's closed
+     */
+    public abstract class ColumnQuery<S extends AutoCloseable> {
+        final ParsedSql parsed;
+        final String sql;
+        final int fetchSize;
+
+        ColumnQuery(ParsedSql parsedSql, String niceSql, int fetchSize) {
+            this.parsed = parsedSql;
+            this.sql = niceSql;
+            this.fetchSize = fetchSize;
+        }
+
+        /**
+         * Allocate a one-time-use {@link java.sql.Connection} and perform the embedded SQL query.
+         * When the returned stream is closed, the {@code Connection} will also be closed.
+         */
+        public S execute(Object... parameters) throws SQLException {
+            return withStatement(sql, (connection, query) -> {
+                populate(connection, query, sql, parameters);
+
+                return read(connection, query, sql, fetchSize, PrimitiveColumn::new, this::stream);
+            });
+        }
+
+        /**
+         * The same query, read through a server-side cursor {@code fetchSize} rows at a time; 0 turns the cursor off.
+         * See {@link Sql#withFetchSize(int)}.
+         */
+        public abstract ColumnQuery<S> withFetchSize(int fetchSize);
+
+        abstract S stream(PrimitiveColumn column, AutoCloseable close);
+    }
+
+    public class LongQuery extends ColumnQuery<CloseableLongStream> {
+        LongQuery(ParsedSql parsedSql, String niceSql, int fetchSize) {
+            super(parsedSql, niceSql, fetchSize);
+        }
+
+        @Override
+        public LongQuery withFetchSize(int fetchSize) {
+            return new LongQuery(parsed, sql, fetchSize);
+        }
+
+        @Override
+        CloseableLongStream stream(PrimitiveColumn column, AutoCloseable close) {
+            return new CloseableLongStream(StreamSupport.longStream(column.longs(), false), close);
+        }
+    }
+
+    public class IntQuery extends ColumnQuery<CloseableIntStream> {
+        IntQuery(ParsedSql parsedSql, String niceSql, int fetchSize) {
+            super(parsedSql, niceSql, fetchSize);
+        }
+
+        @Override
+        public IntQuery withFetchSize(int fetchSize) {
+            return new IntQuery(parsed, sql, fetchSize);
+        }
+
+        @Override
+        CloseableIntStream stream(PrimitiveColumn column, AutoCloseable close) {
+            return new CloseableIntStream(StreamSupport.intStream(column.ints(), false), close);
+        }
+    }
+
+    public class DoubleQuery extends ColumnQuery<CloseableDoubleStream> {
+        DoubleQuery(ParsedSql parsedSql, String niceSql, int fetchSize) {
+            super(parsedSql, niceSql, fetchSize);
+        }
+
+        @Override
+        public DoubleQuery withFetchSize(int fetchSize) {
+            return new DoubleQuery(parsed, sql, fetchSize);
+        }
+
+        @Override
+        CloseableDoubleStream stream(PrimitiveColumn column, AutoCloseable close) {
+            return new CloseableDoubleStream(StreamSupport.doubleStream(column.doubles(), false), close);
+        }
+    }
+
     public abstract class Query<T> {
         final ParsedSql parsed;
         final String sql;
+        final int fetchSize;
 
         public Query(ParsedSql parsedSql, String niceSql) {
+            this(parsedSql, niceSql, Sql.this.fetchSize);
+        }
+
+        protected Query(ParsedSql parsedSql, String niceSql, int fetchSize) {
             this.parsed = parsedSql;
             this.sql = niceSql;
+            this.fetchSize = fetchSize;
         }
 
         /**
@@ -357,6 +1702,130 @@ public class Sql {
          */
         public abstract Stream<T> execute(Object... parameters) throws SQLException;
 
+        /**
+         * The same query, read through a server-side cursor {@code fetchSize} rows at a time; 0 turns the cursor off.
+         * See {@link Sql#withFetchSize(int)}.
+         *
+         * @throws UnsupportedOperationException If this query doesn't read its rows through a cursor
+         */
+        public Query<T> withFetchSize(int fetchSize) {
+            throw unsupported("withFetchSize");
+        }
+
+        /**
+         * The same query, read and converted on a background thread up to {@code bufferSize} rows ahead of the consumer.
+         * Closing the stream stops the background thread. 0 turns prefetching off.
+         * The threads are shared by every Sql, and at most 32 streams read ahead at once;
+         * a stream that finds every thread busy reads its rows on the consumer's thread instead, see {@link #prefetch(int, Executor)}.
+         */
+        public Query<T> prefetch(int bufferSize) {
+            return prefetch(bufferSize, prefetchThreads);
+        }
+
+        /**
+         * The same query, read ahead of the consumer like {@link #prefetch(int)}, on {@code threads}.
+         * Each open stream occupies one thread until it's closed, or until it's garbage collected if it's abandoned.
+         * If no thread starts reading by the time the consumer has waited 100ms for its first row, the consumer reads the rows itself.
+         *
+         * @throws UnsupportedOperationException If this query can't read ahead
+         */
+        public Query<T> prefetch(int bufferSize, Executor threads) {
+            throw unsupported("prefetch");
+        }
+
+        /**
+         * The same query, with rows converted to Java on {@code pool}.
+         * The thread reading the stream copies the raw values of {@code chunkSize} rows at a time out of the ResultSet,
+         * and the pool does the rest of the conversion, like parsing json and calling constructors.
+         * If {@code ordered} is false, rows come out in the order their chunks finish converting.
+         *
+         * @throws UnsupportedOperationException If this query can't convert its rows in parallel
+         */
+        public Query<T> parallel(ForkJoinPool pool, int chunkSize, boolean ordered) {
+            throw unsupported("parallel");
+        }
+
+        private UnsupportedOperationException unsupported(String method) {
+            return new UnsupportedOperationException(method + " isn't supported by " + getClass().getName() + " (" + sql + ")");
+        }
+
+        /**
+         * Run this query once for each set of parameters in {@code partitions}, each on its own connection,
+         * and read the results as one parallel stream, in the order of the partitions.
+         * A partition is executed when the stream reaches it, and its connection is closed as soon as it has been read;
+         * closing the stream closes every partition that is still open.
+         *
+         * Use {@link Sql#keyRanges} to split a scan like {@code WHERE id >= ? AND id < ?} into ranges of keys.
+         */
+        public Stream<T> executePartitioned(List<Object[]> partitions) {
+            List<PartitionedSpliterator.Partition<T>> open = new ArrayList<>(partitions.size());
+
+            for (Object[] parameters : partitions)
+                open.add(() -> execute(parameters));
+
+            PartitionedSpliterator<T> split = new PartitionedSpliterator<>(open);
+
+            return new CloseableStream<>(StreamSupport.stream(split, true), split);
+        }
+
+        /**
+         * Perform the embedded SQL query and read every row into a {@link Materialized},
+         * outside the heap, which can be streamed again and again without running the query again.
+         * Past {@link Sql#withMaterializeBudget(long)}, rows go to a memory-mapped temporary file.
+         * The connection is closed before this returns; close the result to free its memory.
+         *
+         * A query that can't copy the column values out of its rows, like generated keys, stores the rows it reads instead:
+         * values like numbers and strings are encoded outside the heap, and other rows stay on the heap.
+         */
+        public Materialized<T> materialize(Object... parameters) throws SQLException, IOException {
+            try (Stream<T> rows = execute(parameters)) {
+                Iterator<Object[]> copies = rows.map(row -> new Object[]{row}).iterator();
+
+                return Materialized.of(copies, copied -> (T) copied[0], materializeBudget);
+            }
+        }
+
+        /**
+         * Allocate a one-time-use {@link java.sql.Connection}, perform the embedded SQL query,
+         * and read the rows {@code batchSize} at a time into {@link ColumnBatch}es, without converting them to T.
+         * The stream hands out the same batch each time, refilled with the next rows.
+         * When the returned {@code Stream} is closed, the {@code Connection} will also be closed.
+         */
+        public Stream<ColumnBatch> executeBatches(int batchSize, Object... parameters) throws SQLException {
+            if (batchSize <= 0)
+                throw new IllegalArgumentException("Batch size must be positive but was " + batchSize);
+
+            return withStatement(sql, (connection, query) -> {
+                populate(connection, query, sql, parameters);
+
+                return read(connection,
+                            query,
+                            sql,
+                            fetchSize,
+                            (resultSet, fetchSizes) -> new ColumnBatches(resultSet, fetchSizes, batchSize),
+                            (batches, close) -> new CloseableStream<>(StreamSupport.stream(batches, false), close));
+            });
+        }
+
+        /**
+         * Run the query and write its rows to {@code to} as newline-delimited JSON, without converting them to T first.
+         * See {@link RowWriter}.
+         *
+         * @return The number of rows written
+         */
+        public long writeJson(OutputStream to, Object... parameters) throws SQLException, IOException {
+            return export(sql, fetchSize, parameters, (writer, rows) -> writer.writeJsonLines(rows, to));
+        }
+
+        /**
+         * Run the query and write its rows to {@code to} as CSV with a header line, without converting them to T first
+         *
+         * @return The number of rows written
+         */
+        public long writeCsv(OutputStream to, Object... parameters) throws SQLException, IOException {
+            return export(sql, fetchSize, parameters, (writer, rows) -> writer.writeCsv(rows, to));
+        }
+
         public QueryBuilder<T> put(String paramName, Object paramValue) {
             return new QueryBuilder<T>(this).put(paramName, paramValue);
         }
@@ -407,23 +1876,47 @@ public class Sql {
         }
 
         public Batch batch() throws SQLException {
-            return withConnection(connection -> {
-                PreparedStatement query = connection.prepareStatement(sql);
+            return batch(0, 0);
+        }
 
-                return new Batch(connection, query);
-            });
+        /**
+         * A batch that sends its rows whenever {@code flushRows} rows or about {@code flushBytes} bytes of parameters are waiting.
+         * Rows that have been flushed stay written if a later flush fails, unless the batch is part of a {@link Transaction}.
+         *
+         * @param flushRows Flush after this many rows, or 0 for no limit
+         * @param flushBytes Flush after this many bytes of parameters, or 0 for no limit
+         */
+        public Batch batch(int flushRows, long flushBytes) throws SQLException {
+            return batch(flushRows, flushBytes, false);
+        }
+
+        /**
+         * A batch like {@link #batch(int, long)}.
+         * If {@code rewriteInserts} is true and the statement is a plain {@code INSERT INTO t (a, b) VALUES (?, ?)},
+         * each flush sends the rows as a few multi-row INSERTs instead of one INSERT per row, see {@link Batch}.
+         * Other statements are batched as usual.
+         */
+        public Batch batch(int flushRows, long flushBytes, boolean rewriteInserts) throws SQLException {
+            return withStatement(sql, (connection, query) -> new Batch(connection, sql, parsed, query, flushRows, flushBytes, rewriteInserts));
         }
 
+        /**
+         * A query that executes this statement and reads the keys it generated.
+         * The keys come back all at once, after the statement has run,
+         * so {@link Query#withFetchSize}, {@link Query#prefetch} and {@link Query#parallel} throw UnsupportedOperationException.
+         */
         public <K> Query<K> returnGeneratedKeys(Class<K> keyType) {
             return new Query<K>(parsed, sql) {
                 @Override
                 public Stream<K> execute(Object... parameters) throws SQLException {
                     return withConnection(connection -> {
                         PreparedStatement query = connection.prepareStatement(sql, java.sql.Statement.RETURN_GENERATED_KEYS);
-                        populate(connection, query, parameters);
+                        populate(connection, query, sql, parameters);
                         query.execute();
 
-                        return stream(connection, query, query.getGeneratedKeys(), row -> (K) Coerce.sqlToJava(row, 1, keyType));
+                        ToJava<K> key = new ToJavaColumn<>(keyType);
+
+                        return stream(connection, query, null, false, query.getGeneratedKeys(), null, null, null, key);
                     });
                 }
             };
@@ -456,30 +1949,308 @@ public class Sql {
         public T apply(ResultSet row) throws SQLException;
     }
 
+    /**
+     * Rows of parameters for one statement, sent to the database together.
+     * If the batch was created with flush limits, rows are sent whenever the rows or bytes buffered reach a limit,
+     * so the driver never holds more than that; {@link #execute()} sends the rest.
+     *
+     * If the batch was created to rewrite inserts, and the statement is a plain {@code INSERT INTO t (a, b) VALUES (?, ?)},
+     * each flush sends its rows as multi-row INSERTs, batched together, and the update count of each row is 1,
+     * or {@link java.sql.Statement#SUCCESS_NO_INFO} if its INSERT didn't report inserting every row.
+     * If one of them fails, the rest of the flush isn't sent.
+     * Inside a transaction, the {@link BatchUpdateException} has the update counts of the rows that were inserted before it,
+     * and it's up to the transaction whether they stay.
+     * In auto-commit mode, each flush runs in a transaction of its own, so a failed flush inserts none of its rows,
+     * and the exception has no update counts.
+     */
     public class Batch implements AutoCloseable {
         private final Connection connection;
+        private final String sql;
+        private final ParsedSql parsed;
         private final PreparedStatement statement;
+        private final int flushRows;
+        private final long flushBytes;
+        private int bufferedRows = 0;
+        private long bufferedBytes = 0;
+        /**
+         * How to insert many rows per statement, or null if we weren't asked to or statement isn't a plain INSERT
+         */
+        private final InsertRewrite rewrite;
+        /**
+         * Rows waiting to be inserted by rewritten statements, converted to SQL
+         */
+        private final List<Object[]> rows = new ArrayList<>();
+        /**
+         * Multi-row INSERT statements, by number of rows
+         */
+        private final Map<Integer, PreparedStatement> rewritten = new HashMap<>();
+        /**
+         * Update counts of the rows that have been flushed since the last execute()
+         */
+        private int[] counts = new int[0];
+        private int flushedRows = 0;
 
         public Batch(Connection connection, PreparedStatement statement) {
+            this(connection, null, null, statement, 0, 0, false);
+        }
+
+        private Batch(Connection connection, String sql, ParsedSql parsed, PreparedStatement statement, int flushRows, long flushBytes, boolean rewriteInserts) {
             this.connection = connection;
+            this.sql = sql;
+            this.parsed = parsed;
             this.statement = statement;
+            this.flushRows = flushRows;
+            this.flushBytes = flushBytes;
+            this.rewrite = rewriteInserts && sql != null ? InsertRewrite.of(sql) : null;
         }
 
         public void add(Object... parameters) throws SQLException {
-            populate(connection, statement, parameters);
-            statement.addBatch();
+            if (rewrite == null) {
+                bufferedBytes += populate(connection, statement, sql, parameters);
+                statement.addBatch();
+            }
+            else {
+                Object[] values = toSql(connection, statement, sql, parameters);
+
+                for (Object value : values)
+                    bufferedBytes += estimateBytes(value);
+
+                rows.add(values);
+            }
+
+            bufferedRows++;
+
+            if ((flushRows > 0 && bufferedRows >= flushRows) || (flushBytes > 0 && bufferedBytes >= flushBytes))
+                flush();
+        }
+
+        /**
+         * Add a row of named parameters
+         */
+        public void add(Map<String, ?> parameters) throws SQLException {
+            if (parsed == null)
+                throw new IllegalStateException("This batch was created from a PreparedStatement, so it doesn't know its parameter names");
+
+            add(NamedParameters.buildValueArray(parsed, parameters, null));
         }
 
+        public BatchBuilder put(String paramName, Object paramValue) {
+            return new BatchBuilder(this).put(paramName, paramValue);
+        }
+
+        /**
+         * Send the rows that haven't been sent yet.
+         * Returns the update counts of every row added since the last call, including rows that were flushed automatically.
+         * The batch can be re-used afterwards.
+         */
         public int[] execute() throws SQLException {
-            return statement.executeBatch();
+            flush();
+
+            int[] result = Arrays.copyOf(counts, flushedRows);
+
+            flushedRows = 0;
+
+            return result;
+        }
+
+        private void flush() throws SQLException {
+            if (bufferedRows == 0)
+                return;
+
+            // Like the driver's own batches, rows that fail are dropped
+            try {
+                if (rewrite == null) {
+                    int[] flushed = statement.executeBatch();
+
+                    for (int count : flushed)
+                        record(count);
+                }
+                else
+                    insertRows();
+            } finally {
+                bufferedRows = 0;
+                bufferedBytes = 0;
+            }
+        }
+
+        /**
+         * Insert the waiting rows, all or none of them if the connection is in auto-commit mode
+         */
+        private void insertRows() throws SQLException {
+            int flushStart = flushedRows;
+            // Otherwise each statement would commit its chunks as it went, and a failure would leave half the flush inserted
+            boolean ownTransaction = connection.getAutoCommit();
+            Throwable failure = null;
+
+            if (ownTransaction)
+                connection.setAutoCommit(false);
+
+            try {
+                insertChunks(flushStart, ownTransaction);
+
+                if (ownTransaction) {
+                    try {
+                        connection.commit();
+                    } catch (SQLException e) {
+                        throw insertFailed(e, flushStart, true);
+                    }
+                }
+            } catch (SQLException | RuntimeException e) {
+                failure = e;
+
+                if (ownTransaction) {
+                    cleanUpAfter(e, connection::rollback);
+                    flushedRows = flushStart;
+                }
+
+                throw e;
+            } finally {
+                rows.clear();
+
+                if (ownTransaction)
+                    restoreAutoCommit(connection, failure);
+            }
+        }
+
+        /**
+         * Queue the waiting rows as chunks, as many rows per statement as the rewrite allows, then execute them.
+         * The chunks get smaller as we go, so each statement is only used for consecutive chunks,
+         * and executing the statements in the order we first used them inserts the rows in order.
+         *
+         * @param rolledBack True if a failure rolls back every chunk, so none of them should be reported
+         */
+        private void insertChunks(int flushStart, boolean rolledBack) throws SQLException {
+            int width = rewrite.parametersPerRow();
+            // The size of each chunk queued on each statement
+            Map<PreparedStatement, List<Integer>> chunks = new LinkedHashMap<>();
+
+            try {
+                for (int done = 0; done < rows.size(); ) {
+                    int n = rewrite.rowsPerStatement(rows.size() - done);
+                    PreparedStatement insert = n == 1 ? statement : rewritten(n);
+
+                    for (int row = 0; row < n; row++) {
+                        Object[] values = rows.get(done + row);
+
+                        for (int column = 0; column < width; column++)
+                            insert.setObject(row * width + column + 1, values[column]);
+                    }
+
+                    insert.addBatch();
+                    chunks.computeIfAbsent(insert, key -> new ArrayList<>()).add(n);
+                    done += n;
+                }
+
+                Iterator<Map.Entry<PreparedStatement, List<Integer>>> queued = chunks.entrySet().iterator();
+
+                while (queued.hasNext()) {
+                    Map.Entry<PreparedStatement, List<Integer>> next = queued.next();
+                    List<Integer> sizes = next.getValue();
+
+                    queued.remove();
+
+                    try {
+                        recordChunks(next.getKey().executeBatch(), sizes);
+                    } catch (SQLException e) {
+                        if (e instanceof BatchUpdateException)
+                            recordChunks(((BatchUpdateException) e).getUpdateCounts(), sizes);
+
+                        throw insertFailed(e, flushStart, rolledBack);
+                    }
+                }
+            } catch (SQLException | RuntimeException e) {
+                // Don't send the chunks that are still queued with the next flush
+                for (PreparedStatement insert : chunks.keySet())
+                    cleanUpAfter(e, insert::clearBatch);
+
+                throw e;
+            }
+        }
+
+        /**
+         * Record the update count of each row of the chunks that were executed, stopping at the first that failed
+         */
+        private void recordChunks(int[] chunkCounts, List<Integer> sizes) {
+            for (int chunk = 0; chunk < chunkCounts.length && chunk < sizes.size(); chunk++) {
+                int count = chunkCounts[chunk];
+                int n = sizes.get(chunk);
+
+                if (count == java.sql.Statement.EXECUTE_FAILED)
+                    return;
+
+                for (int row = 0; row < n; row++)
+                    record(count == n ? 1 : java.sql.Statement.SUCCESS_NO_INFO);
+            }
+        }
+
+        /**
+         * Like the driver's own batches, report the rows of this flush that went in, and forget them
+         *
+         * @param rolledBack True if none of them stay in, because the flush is being rolled back
+         */
+        private BatchUpdateException insertFailed(SQLException cause, int flushStart, boolean rolledBack) {
+            int[] inserted = rolledBack ? new int[0] : Arrays.copyOfRange(counts, flushStart, flushedRows);
+            BatchUpdateException failure = new BatchUpdateException("Inserted " + inserted.length + " of " + rows.size() + " rows: " + cause.getMessage(),
+                                                                    cause.getSQLState(),
+                                                                    cause.getErrorCode(),
+                                                                    inserted,
+                                                                    cause);
+
+            flushedRows = flushStart;
+
+            return failure;
+        }
+
+        private PreparedStatement rewritten(int rows) throws SQLException {
+            PreparedStatement insert = rewritten.get(rows);
+
+            if (insert == null) {
+                insert = statements.prepare(connection, rewrite.sql(rows));
+                rewritten.put(rows, insert);
+            }
+
+            return insert;
+        }
+
+        private void record(int count) {
+            if (flushedRows == counts.length)
+                counts = Arrays.copyOf(counts, Math.max(16, 2 * counts.length));
+
+            counts[flushedRows++] = count;
         }
 
         @Override
         public void close() throws SQLException {
-            statement.close();
-            connection.close();
+            try {
+                for (Map.Entry<Integer, PreparedStatement> insert : rewritten.entrySet())
+                    statements.release(rewrite.sql(insert.getKey()), insert.getValue());
+
+                statements.release(sql, statement);
+            } finally {
+                connection.close();
+            }
+        }
+    }
+
+    public static class BatchBuilder {
+        final Batch delegate;
+        final Map<String, Object> parameters = Maps.newHashMap();
+
+        public BatchBuilder(Batch delegate) {
+            this.delegate = delegate;
         }
 
-        // TODO put named parameter
+        public BatchBuilder put(String paramName, Object paramValue) {
+            parameters.put(paramName, paramValue);
+
+            return this;
+        }
+
+        /**
+         * Add the parameters that have been put as a row of the batch
+         */
+        public void add() throws SQLException {
+            delegate.add(parameters);
+        }
     }
 }
@@ -0,0 +1,181 @@
+package com.fivetran.sql;
+
+import com.google.common.cache.CacheStats;
+import org.apache.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps PreparedStatements open on the physical connections behind a connection pool,
+ * so executing the same SQL again on the same connection skips the server-side parse and plan.
+ *
+ * A statement is checked out of the cache by {@link #prepare} and checked back in by {@link #release}.
+ * Each physical connection keeps its {@code size} most recently released statements, and closes the least recently used.
+ * A cache of size 0 doesn't cache anything: prepare() prepares a new statement and release() closes it.
+ *
+ * Cached statements belong to the physical connection, not the pool's proxy, so the pool doesn't close them when the proxy is returned;
+ * they are closed when they are evicted, or when the pool closes the physical connection.
+ * Don't combine this with the pool's own statement cache, like c3p0's {@code maxStatementsPerConnection}; use one or the other.
+ */
+public class StatementCache {
+    private static final Logger log = Logger.getLogger(StatementCache.class);
+    private static final int PURGE_INTERVAL = 1000;
+
+    private final int size;
+    private final Map<Connection, Statements> connections = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    /**
+     * Misses and releases, to decide when to purge
+     */
+    private final AtomicLong uses = new AtomicLong();
+
+    public StatementCache(int size) {
+        if (size < 0)
+            throw new IllegalArgumentException("Statement cache size must be non-negative but was " + size);
+
+        this.size = size;
+    }
+
+    /**
+     * Check out a statement for {@code sql} on the physical connection behind {@code connection}
+     */
+    public PreparedStatement prepare(Connection connection, String sql) throws SQLException {
+        if (size == 0)
+            return connection.prepareStatement(sql);
+
+        Connection physical = physical(connection);
+        Statements statements = connections.get(physical);
+        PreparedStatement cached = statements == null ? null : statements.take(sql);
+
+        if (cached != null) {
+            hits.incrementAndGet();
+
+            return cached;
+        }
+        else {
+            misses.incrementAndGet();
+            maybePurgeClosedConnections();
+
+            return physical.prepareStatement(sql);
+        }
+    }
+
+    /**
+     * Check a statement that was prepared by {@link #prepare} back in, closing it if it can't be re-used
+     */
+    public void release(String sql, PreparedStatement statement) throws SQLException {
+        // A closed statement can't tell us its connection, so check it first
+        if (size == 0 || sql == null || statement.isClosed()) {
+            statement.close();
+
+            return;
+        }
+
+        Connection physical = statement.getConnection();
+
+        maybePurgeClosedConnections();
+
+        if (physical.isClosed()) {
+            statement.close();
+
+            return;
+        }
+
+        try {
+            statement.clearParameters();
+            statement.clearBatch();
+        } catch (SQLException e) {
+            statement.close();
+
+            throw e;
+        }
+
+        connections.computeIfAbsent(physical, key -> new Statements())
+                   .put(sql, statement);
+    }
+
+    /**
+     * Hits, misses and evictions of every connection in this cache
+     */
+    public CacheStats stats() {
+        return new CacheStats(hits.get(), misses.get(), 0, 0, 0, evictions.get());
+    }
+
+    /**
+     * Connection pools hand out proxies that close their statements when they are returned to the pool,
+     * so we need to prepare cached statements on the connection that the proxy wraps.
+     */
+    private static Connection physical(Connection connection) throws SQLException {
+        if (connection.isWrapperFor(Connection.class))
+            return connection.unwrap(Connection.class);
+        else
+            return connection;
+    }
+
+    /**
+     * Purge every {@link #PURGE_INTERVAL} misses and releases, so checking in a statement doesn't have to look at every connection,
+     * but a connection the pool retires doesn't stay in {@link #connections} for long
+     */
+    private void maybePurgeClosedConnections() throws SQLException {
+        if (uses.incrementAndGet() % PURGE_INTERVAL == 0)
+            purgeClosedConnections();
+    }
+
+    /**
+     * Forget connections that the pool has closed; their statements were closed with them.
+     * Weak keys wouldn't help: each cached statement refers to its connection, so the connection would never be collected.
+     */
+    private void purgeClosedConnections() throws SQLException {
+        Iterator<Connection> it = connections.keySet().iterator();
+
+        while (it.hasNext()) {
+            if (it.next().isClosed())
+                it.remove();
+        }
+    }
+
+    /**
+     * The idle statements of one physical connection, least recently used first
+     */
+    private class Statements {
+        private final LinkedHashMap<String, PreparedStatement> idle = new LinkedHashMap<>();
+
+        synchronized PreparedStatement take(String sql) {
+            return idle.remove(sql);
+        }
+
+        synchronized void put(String sql, PreparedStatement statement) throws SQLException {
+            // Another copy of the same statement was checked in while this one was out
+            if (idle.containsKey(sql)) {
+                statement.close();
+
+                return;
+            }
+
+            idle.put(sql, statement);
+
+            if (idle.size() > size) {
+                Iterator<PreparedStatement> eldest = idle.values().iterator();
+                PreparedStatement evicted = eldest.next();
+
+                eldest.remove();
+                evictions.incrementAndGet();
+
+                try {
+                    evicted.close();
+                } catch (SQLException e) {
+                    log.warn("Failed to close evicted statement " + evicted, e);
+                }
+            }
+        }
+    }
+}
@@ -5,4 +5,19 @@ import java.sql.SQLException;
 
 public interface ToJava<T> {
     T coerce(ResultSet row) throws SQLException;
+
+    /**
+     * A conversion in two steps: {@link #copy} takes the values out of the row, which has to happen on the thread reading the ResultSet,
+     * and {@link #convert} does the rest, on any thread.
+     */
+    interface Staged<T> extends ToJava<T> {
+        Object[] copy(ResultSet row) throws SQLException;
+
+        T convert(Object[] copied) throws SQLException;
+
+        @Override
+        default T coerce(ResultSet row) throws SQLException {
+            return convert(copy(row));
+        }
+    }
 }
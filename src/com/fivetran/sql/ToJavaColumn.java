@@ -0,0 +1,28 @@
+package com.fivetran.sql;
+
+import java.lang.reflect.Type;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Reads the first column of each row as T.
+ * Used when the columns aren't known until the query runs, so the plan is made from the first row.
+ */
+public class ToJavaColumn<T> implements ToJava<T> {
+    private static final int[] FIRST_COLUMN = {1};
+
+    private final Type[] type;
+    private ColumnReader reader;
+
+    public ToJavaColumn(Type type) {
+        this.type = new Type[]{type};
+    }
+
+    @Override
+    public T coerce(ResultSet row) throws SQLException {
+        if (reader == null)
+            reader = RowPlan.forTypes(row.getMetaData(), FIRST_COLUMN, type).reader(0);
+
+        return (T) reader.read(row);
+    }
+}
@@ -1,7 +1,6 @@
 package com.fivetran.sql;
 
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
 import org.postgresql.util.PGobject;
 
 import java.io.IOException;
@@ -9,26 +8,83 @@ import java.sql.*;
 import java.util.List;
 import java.util.Map;
 
-public class ToJavaMap implements ToJava<Map> {
+public class ToJavaMap implements ToJava.Staged<Map> {
 
-    private final ResultSetMetaData metaData;
+    private final RowPlan plan;
+    private final RowMap.Keys keys;
+    /**
+     * Position in keys of each column; columns with the same name share a position, and the last one wins
+     */
+    private final int[] keyIndex;
 
-    public ToJavaMap(ResultSetMetaData metaData) {
-        this.metaData = metaData;
+    public ToJavaMap(ResultSetMetaData metaData) throws SQLException {
+        this.plan = RowPlan.forMap(metaData);
+
+        String[] names = new String[plan.size()];
+
+        for (int i = 0; i < names.length; i++)
+            names[i] = plan.name(i);
+
+        this.keys = RowMap.Keys.of(names);
+        this.keyIndex = new int[names.length];
+
+        for (int i = 0; i < names.length; i++)
+            keyIndex[i] = keys.indexOf(names[i]);
     }
 
     @Override
     public Map coerce(ResultSet row) throws SQLException {
-        Map<String, Object> acc = Maps.newLinkedHashMap();
+        Object[] values = new Object[keys.size()];
 
-        for (int i = 0; i < metaData.getColumnCount(); i++) {
-            String key = metaData.getColumnName(i + 1);
-            Object value = row.getObject(i + 1);
+        for (int i = 0; i < keyIndex.length; i++)
+            values[keyIndex[i]] = plan.reader(i).read(row);
 
-            acc.put(key, sqlToJava(value));
-        }
+        return new RowMap(keys, values);
+    }
+
+    @Override
+    public Object[] copy(ResultSet row) throws SQLException {
+        return plan.copy(row);
+    }
+
+    @Override
+    public Map convert(Object[] copied) throws SQLException {
+        plan.decode(copied);
+
+        Object[] values = new Object[keys.size()];
 
-        return acc;
+        for (int i = 0; i < keyIndex.length; i++)
+            values[keyIndex[i]] = copied[i];
+
+        return new RowMap(keys, values);
+    }
+
+    /**
+     * Decide once how to read {@code column} into a Map, based on its SQL type
+     */
+    static ColumnReader sqlToJava(ResultSetMetaData metaData, int column) throws SQLException {
+        switch (metaData.getColumnType(column)) {
+            case Types.OTHER:
+                if (metaData.getColumnTypeName(column).equals("json"))
+                    return new ColumnReader.Split(row -> row.getString(column), text -> text == null ? null : readJsonUnsafe((String) text));
+                else
+                    return row -> sqlToJava(row.getObject(column));
+            case Types.ARRAY:
+                return row -> {
+                    Array array = row.getArray(column);
+
+                    return array == null ? null : sqlToArray(array);
+                };
+            case Types.TIMESTAMP:
+            case Types.TIMESTAMP_WITH_TIMEZONE:
+                return row -> {
+                    Object value = row.getObject(column);
+
+                    return value instanceof Timestamp ? ((Timestamp) value).toInstant() : value;
+                };
+            default:
+                return row -> row.getObject(column);
+        }
     }
 
     private static Object sqlToJava(Object value) throws SQLException {
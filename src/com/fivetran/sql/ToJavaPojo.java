@@ -1,19 +1,47 @@
 package com.fivetran.sql;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
 import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Constructor;
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Modifier;
 import java.lang.reflect.Type;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class ToJavaPojo<T> implements ToJava.Staged<T> {
+    private static final long MAX_LAYOUTS_PER_CLASS = 100;
+
+    /**
+     * Compiled handles of each row type, kept with the class itself, so they don't keep its class loader alive after it's unloaded
+     */
+    private static final ClassValue<Compiled> compiled = new ClassValue<Compiled>() {
+        @Override
+        protected Compiled computeValue(Class<?> type) {
+            return new Compiled();
+        }
+    };
 
-public class ToJavaPojo<T> implements ToJava<T> {
     private final Constructor<T> constructor;
     private final Type[] types;
     private final int[] columnIndex;
+    private final RowPlan plan;
+    /**
+     * (ResultSet)Object, reads each column with a typed getter and calls constructor
+     */
+    private final MethodHandle mapper;
+    /**
+     * (Object[])Object, calls constructor with values that were copied out of the row by the plan
+     */
+    private final MethodHandle spreader;
 
     public ToJavaPojo(ResultSetMetaData metaData, Class<T> javaType) throws SQLException {
         if (javaType.isMemberClass() && !Modifier.isStatic(javaType.getModifiers()))
@@ -30,6 +58,10 @@ public class ToJavaPojo<T> implements ToJava<T> {
                                .map(ToJavaPojo::getName)
                                .toArray(String[]::new);
         columnIndex = findColumns(metaData, names);
+        plan = RowPlan.forTypes(metaData, columnIndex, types);
+        Compiled handles = compiled.get(javaType);
+        mapper = handles.mappers.asMap().computeIfAbsent(new Layout(metaData, constructor, columnIndex), layout -> layout.compile(plan));
+        spreader = handles.spreaders.computeIfAbsent(constructor, ToJavaPojo::spreader);
     }
 
     private static int[] findColumns(ResultSetMetaData metaData, String[] names) throws SQLException {
@@ -98,17 +130,144 @@ public class ToJavaPojo<T> implements ToJava<T> {
     }
 
     public T coerce(ResultSet row) throws SQLException {
-        int n = types.length;
-        Object[] values = new Object[n];
+        try {
+            return (T) (Object) mapper.invokeExact(row);
+        } catch (SQLException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+    }
 
-        for (int i = 0; i < n; i++)
-            values[i] = Coerce.sqlToJava(row, columnIndex[i], types[i]);
+    @Override
+    public Object[] copy(ResultSet row) throws SQLException {
+        return plan.copy(row);
+    }
+
+    @Override
+    public T convert(Object[] copied) throws SQLException {
+        plan.decode(copied);
 
         try {
-            return constructor.newInstance(values);
-        } catch (InvocationTargetException | InstantiationException | IllegalAccessException e) {
+            return (T) (Object) spreader.invokeExact(copied);
+        } catch (SQLException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Build a (Object[])Object method handle equivalent to {@code new T((long) args[0], (int) args[1], (String) args[2], ...)}
+     */
+    private static MethodHandle spreader(Constructor<?> constructor) {
+        try {
+            MethodHandle handle = MethodHandles.lookup().unreflectConstructor(constructor);
+            int n = handle.type().parameterCount();
+
+            return handle.asType(MethodType.genericMethodType(n))
+                         .asSpreader(Object[].class, n);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static class Compiled {
+        /**
+         * Compiled row mappers, by constructor and the columns that feed each constructor parameter
+         */
+        final Cache<Layout, MethodHandle> mappers = CacheBuilder.newBuilder()
+                                                                .maximumSize(MAX_LAYOUTS_PER_CLASS)
+                                                                .build();
+        /**
+         * (Object[])Object handles that call each constructor with an array of its arguments
+         */
+        final Map<Constructor<?>, MethodHandle> spreaders = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * A constructor, and the column that feeds each of its parameters.
+     * The SQL types of the columns are part of the layout, because they decide how the plan reads each column.
+     */
+    private static class Layout {
+        final Constructor<?> constructor;
+        final int[] columnIndex;
+        final String[] columnTypes;
+
+        Layout(ResultSetMetaData metaData, Constructor<?> constructor, int[] columnIndex) throws SQLException {
+            this.constructor = constructor;
+            this.columnIndex = columnIndex;
+            this.columnTypes = new String[columnIndex.length];
+
+            for (int i = 0; i < columnIndex.length; i++)
+                columnTypes[i] = metaData.getColumnType(columnIndex[i]) + " " + metaData.getColumnTypeName(columnIndex[i]);
+        }
+
+        /**
+         * Build a (ResultSet)Object method handle equivalent to
+         * {@code new T(getLong(row, 1), getInt(row, 2), (String) plan.reader(2).read(row), ...)}
+         */
+        MethodHandle compile(RowPlan plan) {
+            try {
+                MethodHandle handle = MethodHandles.lookup().unreflectConstructor(constructor);
+                Type[] types = constructor.getGenericParameterTypes();
+                int n = types.length;
+
+                // Replace each parameter (P) with a reader (ResultSet)P
+                for (int i = 0; i < n; i++)
+                    handle = MethodHandles.filterArguments(handle, i, reader(columnIndex[i], types[i], plan.reader(i), handle.type().parameterType(i)));
+
+                // Pass the same ResultSet to every reader
+                MethodType oneRow = MethodType.methodType(handle.type().returnType(), ResultSet.class);
+
+                if (n == 0)
+                    handle = MethodHandles.dropArguments(handle, 0, ResultSet.class);
+                else
+                    handle = MethodHandles.permuteArguments(handle, oneRow, new int[n]);
+
+                return handle.asType(MethodType.methodType(Object.class, ResultSet.class));
+            } catch (NoSuchMethodException | IllegalAccessException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            Layout layout = (Layout) o;
+
+            return constructor.equals(layout.constructor)
+                   && Arrays.equals(columnIndex, layout.columnIndex)
+                   && Arrays.equals(columnTypes, layout.columnTypes);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * constructor.hashCode() + Arrays.hashCode(columnIndex)) + Arrays.hashCode(columnTypes);
+        }
+    }
+
+    /**
+     * A method handle (ResultSet)javaClass that reads column as type.
+     * Primitives use a typed getter so they never get boxed, everything else uses the reader from the row plan.
+     */
+    private static MethodHandle reader(int column, Type type, ColumnReader planned, Class<?> javaClass) throws NoSuchMethodException, IllegalAccessException {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        MethodHandle read;
+
+        if (type == boolean.class || type == int.class || type == long.class || type == double.class) {
+            String name = "get" + Character.toUpperCase(type.getTypeName().charAt(0)) + type.getTypeName().substring(1);
+
+            read = lookup.findStatic(Coerce.class, name, MethodType.methodType(javaClass, ResultSet.class, int.class));
+            read = MethodHandles.insertArguments(read, 1, column);
+        }
+        else {
+            read = lookup.findVirtual(ColumnReader.class, "read", MethodType.methodType(Object.class, ResultSet.class));
+            read = read.bindTo(planned);
+        }
+
+        return read.asType(MethodType.methodType(javaClass, ResultSet.class));
+    }
 }
@@ -48,6 +48,27 @@ public class CloseableLongStream implements LongStream {
         return new CloseableLongStream(delegate.distinct(), closeMe);
     }
 
+    /**
+     * Distinct values, with at most {@code maxEntries} of them in memory; see {@link LongGroups#distinct(LongStream, int)}
+     */
+    public CloseableLongStream distinct(int maxEntries) {
+        return LongGroups.distinct(this, maxEntries);
+    }
+
+    /**
+     * Count each distinct value, with at most {@code maxEntries} of them in memory; see {@link LongGroups}
+     */
+    public LongGroups countBy(int maxEntries) {
+        return LongGroups.countBy(this, maxEntries);
+    }
+
+    /**
+     * Sum {@code value} of each distinct value, with at most {@code maxEntries} of them in memory; see {@link LongGroups}
+     */
+    public LongGroups sumBy(LongUnaryOperator value, int maxEntries) {
+        return LongGroups.sumBy(this, value, maxEntries);
+    }
+
     @Override
     public CloseableLongStream sorted() {
         return new CloseableLongStream(delegate.sorted(), closeMe);
@@ -123,6 +123,14 @@ public class CloseableStream<T> implements Stream<T> {
         return new CloseableStream<>(delegate.sorted(comparator), closeMe);
     }
 
+    /**
+     * Sort without holding more than {@code maxInMemory} elements in memory, spilling sorted runs to disk with {@code codec}.
+     * See {@link ExternalSort}.
+     */
+    public CloseableStream<T> sorted(Comparator<? super T> comparator, ExternalSort.Codec<T> codec, int maxInMemory) {
+        return ExternalSort.sorted(this, comparator, codec, maxInMemory);
+    }
+
     @Override
     public CloseableStream<T> peek(Consumer<? super T> action) {
         return new CloseableStream<>(delegate.peek(action), closeMe);
@@ -0,0 +1,315 @@
+package com.fivetran.sql.stream;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Sorts a stream that might not fit in memory.
+ *
+ * Reads up to {@code maxInMemory} elements at a time, sorts them, and writes each sorted run to a temporary file with {@code codec}.
+ * The sorted stream merges the runs, reading one element of each at a time, so memory holds one buffer per run instead of every element.
+ * At most {@link #MAX_MERGE_WIDTH} runs are merged at once; if there are more, groups of them are merged into longer runs first,
+ * as many times as it takes, so a big input doesn't open a file and a buffer for every run.
+ * If the input fits in one run, nothing is written to disk.
+ *
+ * Like {@link Stream#sorted}, the input is read when the first element is requested, and the sort is stable.
+ * Closing the sorted stream deletes the runs and closes the input.
+ */
+public class ExternalSort {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /**
+     * The most runs we read at once
+     */
+    static final int MAX_MERGE_WIDTH = 64;
+
+    /**
+     * Writes and reads elements of the sorted stream, to and from the runs on disk
+     */
+    public interface Codec<T> {
+        void write(DataOutput out, T value) throws IOException;
+
+        T read(DataInput in) throws IOException;
+    }
+
+    /**
+     * Sort input by comparator, keeping at most maxInMemory elements in memory while reading it
+     */
+    public static <T> CloseableStream<T> sorted(Stream<T> input, Comparator<? super T> comparator, Codec<T> codec, int maxInMemory) {
+        Sorter<T> sort = new Sorter<>(input, comparator, codec, maxInMemory);
+        Spliterator<T> sorted = Spliterators.spliteratorUnknownSize(sort, Spliterator.ORDERED);
+
+        return new CloseableStream<>(StreamSupport.stream(sorted, false), sort);
+    }
+
+    /**
+     * Reads the input into sorted runs the first time it's asked for an element, then merges them
+     */
+    private static class Sorter<T> implements Iterator<T>, AutoCloseable {
+        private final Stream<T> input;
+        private final Comparator<? super T> comparator;
+        private final Codec<T> codec;
+        private final int maxInMemory;
+        /**
+         * The runs that haven't been merged away, in the order of the input
+         */
+        private final List<Run> runs = new ArrayList<>();
+        /**
+         * The merge of every run, null until the input has been read
+         */
+        private Merge merge;
+
+        Sorter(Stream<T> input, Comparator<? super T> comparator, Codec<T> codec, int maxInMemory) {
+            if (maxInMemory <= 0)
+                throw new IllegalArgumentException("Elements in memory must be positive but was " + maxInMemory);
+
+            this.input = input;
+            this.comparator = comparator;
+            this.codec = codec;
+            this.maxInMemory = maxInMemory;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (merge == null)
+                readInput();
+
+            return merge.hasNext();
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+
+            return merge.next();
+        }
+
+        /**
+         * Read the input into sorted runs, spilling every full run; the last one stays in memory.
+         * Then merge the spilled runs until there are few enough to merge with that one.
+         */
+        private void readInput() {
+            List<T> buffer = new ArrayList<>();
+            Iterator<T> it = input.iterator();
+
+            try {
+                while (it.hasNext()) {
+                    buffer.add(it.next());
+
+                    if (buffer.size() == maxInMemory) {
+                        buffer.sort(comparator);
+                        runs.add(spill(buffer.iterator()));
+                        buffer.clear();
+                    }
+                }
+
+                while (runs.size() >= MAX_MERGE_WIDTH)
+                    mergeRuns();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+
+            buffer.sort(comparator);
+            runs.add(new Run(buffer.iterator()));
+
+            merge = new Merge(runs);
+        }
+
+        /**
+         * Replace each group of {@link #MAX_MERGE_WIDTH} consecutive runs with one run that merges them.
+         * The groups are consecutive, so equal elements still come out in the order of the input.
+         */
+        private void mergeRuns() throws IOException {
+            List<Run> merged = new ArrayList<>();
+
+            try {
+                while (!runs.isEmpty()) {
+                    List<Run> group = runs.subList(0, Math.min(MAX_MERGE_WIDTH, runs.size()));
+
+                    if (group.size() == 1)
+                        merged.add(group.get(0));
+                    else {
+                        merged.add(spill(new Merge(group)));
+
+                        for (Run run : group)
+                            run.close();
+                    }
+
+                    group.clear();
+                }
+            } finally {
+                // If we failed, the runs we didn't get to come after the ones we merged, and close() deletes both
+                runs.addAll(0, merged);
+            }
+        }
+
+        private Run spill(Iterator<T> sorted) throws IOException {
+            Path file = Files.createTempFile("sort", ".run");
+            long size = 0;
+
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), BUFFER_SIZE))) {
+                while (sorted.hasNext()) {
+                    codec.write(out, sorted.next());
+                    size++;
+                }
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(file);
+
+                throw e;
+            }
+
+            return new Run(file, size);
+        }
+
+        /**
+         * Merges sorted runs, taking the smallest next element of any of them each time
+         */
+        private class Merge implements Iterator<T> {
+            /**
+             * The run with the smallest next element at the front
+             */
+            private final PriorityQueue<Run> heads;
+
+            Merge(List<Run> runs) {
+                // Equal elements come out of earlier runs first, so the sort is stable
+                heads = new PriorityQueue<>(runs.size(), (a, b) -> {
+                    int order = comparator.compare(a.head, b.head);
+
+                    return order != 0 ? order : Integer.compare(a.index, b.index);
+                });
+
+                for (int i = 0; i < runs.size(); i++)
+                    runs.get(i).index = i;
+
+                for (Run run : runs) {
+                    if (run.advance())
+                        heads.add(run);
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return !heads.isEmpty();
+            }
+
+            @Override
+            public T next() {
+                Run smallest = heads.poll();
+                T next = smallest.head;
+
+                if (smallest.advance())
+                    heads.add(smallest);
+
+                return next;
+            }
+        }
+
+        /**
+         * Delete every run, and close the input
+         */
+        @Override
+        public void close() throws IOException {
+            IOException failure = null;
+
+            for (Run run : runs) {
+                try {
+                    run.close();
+                } catch (IOException e) {
+                    if (failure == null)
+                        failure = e;
+                    else
+                        failure.addSuppressed(e);
+                }
+            }
+
+            runs.clear();
+            input.close();
+
+            if (failure != null)
+                throw failure;
+        }
+
+        /**
+         * One sorted run, and the next element we haven't merged yet
+         */
+        private class Run implements Closeable {
+            /**
+             * Where the run is in the list of runs being merged
+             */
+            int index;
+            /**
+             * The run in memory, or null if it's on disk
+             */
+            private final Iterator<T> memory;
+            private final Path file;
+            private long remaining;
+            private DataInputStream in;
+            T head;
+
+            Run(Iterator<T> memory) {
+                this.memory = memory;
+                this.file = null;
+            }
+
+            Run(Path file, long size) {
+                this.memory = null;
+                this.file = file;
+                this.remaining = size;
+            }
+
+            /**
+             * Move head to the next element of the run
+             *
+             * @return false if the run is over
+             */
+            boolean advance() {
+                if (memory != null) {
+                    if (!memory.hasNext())
+                        return false;
+
+                    head = memory.next();
+
+                    return true;
+                }
+
+                try {
+                    if (remaining == 0) {
+                        close();
+
+                        return false;
+                    }
+
+                    if (in == null)
+                        in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), BUFFER_SIZE));
+
+                    head = codec.read(in);
+                    remaining--;
+
+                    return true;
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                head = null;
+
+                if (file == null)
+                    return;
+
+                try {
+                    if (in != null)
+                        in.close();
+                } finally {
+                    in = null;
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,358 @@
+package com.fivetran.sql.stream;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.LongConsumer;
+import java.util.function.LongUnaryOperator;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collector;
+import java.util.stream.LongStream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Sums a long value for each distinct long key, for distinct, count-by-key and sum-by-key,
+ * in a {@link LongHashTable} of up to {@code maxEntries} keys, at most 2^29, instead of a {@code HashMap<Long, Long>}.
+ *
+ * Once the table is full, values of keys that aren't in it are appended to one of {@link #PARTITIONS} temporary files, chosen by hash.
+ * Reading the groups reads the table and lets go of it, then aggregates each file the same way, one at a time,
+ * so memory never holds more than {@code maxEntries} keys of one LongGroups, even while it's read.
+ * A file with too many keys spills again, into files chosen by other bits of the hash.
+ * Because reading gives up the table, the groups can only be read once, by {@link #forEach} or {@link #keys()}.
+ *
+ * Close the groups to delete the files.
+ */
+public class LongGroups implements AutoCloseable {
+    private static final int PARTITIONS = 16;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    @FunctionalInterface
+    public interface Consumer {
+        void accept(long key, long value);
+    }
+
+    private final int maxEntries;
+    /**
+     * How many times these keys have been partitioned; each level partitions by the next 4 bits of the hash
+     */
+    private final int level;
+    /**
+     * Null once the groups have been read
+     */
+    private LongHashTable table;
+    /**
+     * The keys being read, if they are
+     */
+    private Keys reading;
+    private final Path[] files = new Path[PARTITIONS];
+    private final DataOutputStream[] spills = new DataOutputStream[PARTITIONS];
+    private long spilled = 0;
+
+    public LongGroups(int maxEntries) {
+        this(maxEntries, 0);
+    }
+
+    private LongGroups(int maxEntries, int level) {
+        this.maxEntries = maxEntries;
+        this.level = level;
+        this.table = new LongHashTable(maxEntries);
+    }
+
+    /**
+     * Distinct keys, counting the number of times each one appears
+     */
+    public static <T> Collector<T, LongGroups, LongGroups> countBy(ToLongFunction<? super T> key, int maxEntries) {
+        return sumBy(key, row -> 1, maxEntries);
+    }
+
+    /**
+     * Distinct keys, summing value for each one
+     */
+    public static <T> Collector<T, LongGroups, LongGroups> sumBy(ToLongFunction<? super T> key, ToLongFunction<? super T> value, int maxEntries) {
+        return Collector.of(() -> new LongGroups(maxEntries),
+                            (groups, row) -> groups.add(key.applyAsLong(row), value.applyAsLong(row)),
+                            LongGroups::merge,
+                            Collector.Characteristics.UNORDERED,
+                            Collector.Characteristics.IDENTITY_FINISH);
+    }
+
+    /**
+     * Distinct keys, with value 0
+     */
+    public static <T> Collector<T, LongGroups, LongGroups> distinct(ToLongFunction<? super T> key, int maxEntries) {
+        return sumBy(key, row -> 0, maxEntries);
+    }
+
+    /**
+     * Count the number of times each key appears in keys
+     */
+    public static LongGroups countBy(LongStream keys, int maxEntries) {
+        return sumBy(keys, key -> 1, maxEntries);
+    }
+
+    /**
+     * Sum value of each key in keys, for each distinct key
+     */
+    public static LongGroups sumBy(LongStream keys, LongUnaryOperator value, int maxEntries) {
+        return keys.collect(() -> new LongGroups(maxEntries), (groups, key) -> groups.add(key, value.applyAsLong(key)), LongGroups::merge);
+    }
+
+    /**
+     * The distinct elements of keys, in no particular order.
+     * Like {@link LongStream#distinct()}, keys is read when the first element is requested.
+     * Closing the distinct stream deletes any files and closes keys.
+     */
+    public static CloseableLongStream distinct(LongStream keys, int maxEntries) {
+        LongGroups groups = new LongGroups(maxEntries);
+        LongStream distinct = StreamSupport.longStream(() -> {
+            keys.sequential().forEach(key -> groups.add(key, 0));
+
+            return groups.keys().spliterator();
+        }, 0, false);
+
+        return new CloseableLongStream(distinct, () -> {
+            try {
+                groups.close();
+            } finally {
+                keys.close();
+            }
+        });
+    }
+
+    public void add(long key, long value) {
+        if (table == null)
+            throw new IllegalStateException("Can't add to groups that have been read");
+
+        if (!table.add(key, value))
+            spill(key, value);
+    }
+
+    /**
+     * Add every group of other to these groups, and close other
+     */
+    public LongGroups merge(LongGroups other) {
+        try {
+            other.forEach(this::add);
+        } finally {
+            other.close();
+        }
+
+        return this;
+    }
+
+    /**
+     * The number of values written to temporary files, at this level; 0 if everything fit in memory
+     */
+    public long spilled() {
+        return spilled;
+    }
+
+    /**
+     * Call action with each key and its value, in no particular order
+     */
+    public void forEach(Consumer action) {
+        take().forEach(action);
+
+        finishSpilling();
+
+        for (int partition = 0; partition < PARTITIONS; partition++) {
+            if (files[partition] != null) {
+                try (LongGroups groups = load(partition)) {
+                    groups.forEach(action);
+                }
+            }
+        }
+    }
+
+    /**
+     * Each key once, in no particular order.
+     * Closing the stream deletes the files of the partition it's reading, if it stopped in the middle of one.
+     */
+    public CloseableLongStream keys() {
+        Keys keys = keysSpliterator();
+
+        return new CloseableLongStream(StreamSupport.longStream(keys, false), keys::close);
+    }
+
+    private Keys keysSpliterator() {
+        reading = new Keys(take().keys());
+
+        finishSpilling();
+
+        return reading;
+    }
+
+    /**
+     * The keys in the table, then the keys of each spilled partition.
+     * A partition is loaded when the one before it is done, and closed when it's done itself,
+     * however the keys are pulled, so only one partition per level is ever in memory.
+     */
+    private class Keys extends Spliterators.AbstractLongSpliterator {
+        /**
+         * The keys of the table, then of the partition that's loaded
+         */
+        private Spliterator.OfLong current;
+        private LongGroups loaded;
+        private int nextPartition = 0;
+
+        Keys(Spliterator.OfLong inMemory) {
+            super(Long.MAX_VALUE, Spliterator.DISTINCT);
+
+            this.current = inMemory;
+        }
+
+        @Override
+        public boolean tryAdvance(LongConsumer action) {
+            while (!current.tryAdvance(action)) {
+                closeLoaded();
+
+                while (nextPartition < PARTITIONS && files[nextPartition] == null)
+                    nextPartition++;
+
+                if (nextPartition == PARTITIONS) {
+                    current = Spliterators.emptyLongSpliterator();
+
+                    return false;
+                }
+
+                loaded = load(nextPartition++);
+                current = loaded.keysSpliterator();
+            }
+
+            return true;
+        }
+
+        /**
+         * Close the partition we are reading, which closes the partition it is reading, and so on
+         */
+        void close() {
+            closeLoaded();
+        }
+
+        private void closeLoaded() {
+            if (loaded != null) {
+                LongGroups done = loaded;
+
+                loaded = null;
+                done.close();
+            }
+        }
+    }
+
+    /**
+     * Take the table, so it can be collected as soon as the reader is done with it, before we load any partition
+     */
+    private LongHashTable take() {
+        LongHashTable read = table;
+
+        if (read == null)
+            throw new IllegalStateException("Groups can only be read once");
+
+        table = null;
+
+        return read;
+    }
+
+    private int partition(long key) {
+        return (int) (LongHashTable.hash(key) >>> (60 - 4 * level)) & (PARTITIONS - 1);
+    }
+
+    private void spill(long key, long value) {
+        int partition = partition(key);
+
+        try {
+            if (spills[partition] == null) {
+                if (files[partition] == null)
+                    files[partition] = Files.createTempFile("groups", ".part");
+
+                spills[partition] = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(files[partition], StandardOpenOption.APPEND), BUFFER_SIZE));
+            }
+
+            spills[partition].writeLong(key);
+            spills[partition].writeLong(value);
+            spilled++;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Close the files we are writing, so we can read them
+     */
+    private void finishSpilling() {
+        try {
+            for (int partition = 0; partition < PARTITIONS; partition++) {
+                if (spills[partition] != null) {
+                    spills[partition].close();
+                    spills[partition] = null;
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Aggregate the values spilled to one partition
+     */
+    private LongGroups load(int partition) {
+        LongGroups groups = new LongGroups(maxEntries, level + 1);
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(files[partition]), BUFFER_SIZE))) {
+            long pairs = Files.size(files[partition]) / 16;
+
+            for (long i = 0; i < pairs; i++)
+                groups.add(in.readLong(), in.readLong());
+
+            return groups;
+        } catch (IOException e) {
+            groups.close();
+
+            throw new RuntimeException(e);
+        } catch (RuntimeException e) {
+            groups.close();
+
+            throw e;
+        }
+    }
+
+    /**
+     * Delete the temporary files, and those of any partition that's being read
+     */
+    @Override
+    public void close() {
+        RuntimeException failure = null;
+
+        if (reading != null) {
+            try {
+                reading.close();
+            } catch (RuntimeException e) {
+                failure = e;
+            }
+        }
+
+        for (int partition = 0; partition < PARTITIONS; partition++) {
+            try {
+                if (spills[partition] != null)
+                    spills[partition].close();
+
+                if (files[partition] != null)
+                    Files.deleteIfExists(files[partition]);
+            } catch (IOException e) {
+                if (failure == null)
+                    failure = new RuntimeException(e);
+                else
+                    failure.addSuppressed(e);
+            } finally {
+                spills[partition] = null;
+                files[partition] = null;
+            }
+        }
+
+        if (failure != null)
+            throw failure;
+    }
+}
@@ -0,0 +1,182 @@
+package com.fivetran.sql.stream;
+
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.LongConsumer;
+
+/**
+ * Maps long keys to long values in two arrays, with open addressing and linear probing,
+ * so an entry costs 16 bytes and adding one doesn't allocate anything.
+ *
+ * Holds at most {@code maxEntries} keys, up to {@link #MAX_ENTRIES}; {@link #add} refuses new keys past that, so the caller can put them somewhere else.
+ */
+class LongHashTable {
+    /**
+     * Empty slots hold key 0, so key 0 itself is kept on the side
+     */
+    private static final long EMPTY = 0;
+    /**
+     * The table is kept at most half full, and the biggest power of two an array can hold is 2^30
+     */
+    static final int MAX_ENTRIES = 1 << 29;
+
+    private final int maxEntries;
+    private long[] keys;
+    private long[] values;
+    private int mask;
+    private int size = 0;
+    private boolean hasZero = false;
+    private long zeroValue = 0;
+
+    LongHashTable(int maxEntries) {
+        if (maxEntries <= 0)
+            throw new IllegalArgumentException("Entries in memory must be positive but was " + maxEntries);
+
+        if (maxEntries > MAX_ENTRIES)
+            throw new IllegalArgumentException("Entries in memory must be at most " + MAX_ENTRIES + " but was " + maxEntries);
+
+        this.maxEntries = maxEntries;
+
+        allocate(16);
+    }
+
+    static long hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+
+        return h ^ (h >>> 32);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Add delta to the value of key, adding key with value delta if it's new
+     *
+     * @return false if key is new and the table is full, in which case nothing changed
+     */
+    boolean add(long key, long delta) {
+        if (key == EMPTY) {
+            if (!hasZero) {
+                if (size == maxEntries)
+                    return false;
+
+                hasZero = true;
+                size++;
+            }
+
+            zeroValue += delta;
+
+            return true;
+        }
+
+        int slot = (int) hash(key) & mask;
+
+        while (keys[slot] != EMPTY) {
+            if (keys[slot] == key) {
+                values[slot] += delta;
+
+                return true;
+            }
+
+            slot = (slot + 1) & mask;
+        }
+
+        if (size == maxEntries)
+            return false;
+
+        keys[slot] = key;
+        values[slot] = delta;
+        size++;
+
+        // Keep the table at most half full, so probes stay short
+        if (size * 2 > keys.length)
+            allocate(keys.length * 2);
+
+        return true;
+    }
+
+    void forEach(LongGroups.Consumer action) {
+        if (hasZero)
+            action.accept(0, zeroValue);
+
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY)
+                action.accept(keys[i], values[i]);
+        }
+    }
+
+    /**
+     * The keys, in no particular order, read from the table without copying them.
+     * Doesn't hold on to the table, and lets go of the keys once it has returned them all.
+     */
+    Spliterator.OfLong keys() {
+        return new Keys(hasZero, keys, size);
+    }
+
+    private void allocate(int capacity) {
+        long[] oldKeys = keys, oldValues = values;
+
+        keys = new long[capacity];
+        values = new long[capacity];
+        mask = capacity - 1;
+
+        if (oldKeys == null)
+            return;
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            long key = oldKeys[i];
+
+            if (key != EMPTY) {
+                int slot = (int) hash(key) & mask;
+
+                while (keys[slot] != EMPTY)
+                    slot = (slot + 1) & mask;
+
+                keys[slot] = key;
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private static class Keys extends Spliterators.AbstractLongSpliterator {
+        private boolean zero;
+        private long[] keys;
+        private int next = 0;
+
+        Keys(boolean zero, long[] keys, int size) {
+            super(size, Spliterator.DISTINCT);
+
+            this.zero = zero;
+            this.keys = keys;
+        }
+
+        @Override
+        public boolean tryAdvance(LongConsumer action) {
+            if (zero) {
+                zero = false;
+                action.accept(0);
+
+                return true;
+            }
+
+            while (keys != null) {
+                if (next == keys.length) {
+                    keys = null;
+
+                    return false;
+                }
+
+                long key = keys[next++];
+
+                if (key != EMPTY) {
+                    action.accept(key);
+
+                    return true;
+                }
+            }
+
+            return false;
+        }
+    }
+}
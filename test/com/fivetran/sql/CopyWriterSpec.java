@@ -0,0 +1,110 @@
+package com.fivetran.sql;
+
+import org.junit.Test;
+import org.postgresql.copy.CopyIn;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CopyWriterSpec {
+    /**
+     * Collects what would be sent to the server
+     */
+    private static class Sent implements CopyIn {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int writes = 0;
+
+        @Override
+        public void writeToCopy(byte[] buf, int off, int siz) {
+            bytes.write(buf, off, siz);
+            writes++;
+        }
+
+        @Override
+        public void flushCopy() {
+        }
+
+        @Override
+        public long endCopy() {
+            return 0;
+        }
+
+        @Override
+        public int getFieldCount() {
+            return 0;
+        }
+
+        @Override
+        public int getFormat() {
+            return 0;
+        }
+
+        @Override
+        public int getFieldFormat(int field) {
+            return 0;
+        }
+
+        @Override
+        public boolean isActive() {
+            return true;
+        }
+
+        @Override
+        public void cancelCopy() {
+        }
+
+        @Override
+        public long getHandledRowCount() {
+            return 0;
+        }
+
+        String text() {
+            return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    @Test
+    public void escapeText() throws SQLException {
+        Sent sent = new Sent();
+        CopyWriter writer = new CopyWriter(sent, 1024, ZoneOffset.UTC);
+
+        writer.row(new Object[]{1, "a\tb\nc\\d", null, true, "\u00e9\ud83d\ude00"});
+        writer.row(new Object[]{Timestamp.from(Instant.parse("2015-01-01T00:00:00Z")), new byte[]{0x0a, (byte) 0xff}});
+        writer.finish();
+
+        assertEquals("1\ta\\tb\\nc\\\\d\t\\N\tt\t\u00e9\ud83d\ude00\n2015-01-01T00:00Z\t\\\\x0aff\n", sent.text());
+    }
+
+    @Test
+    public void writeTimestampsInZone() throws SQLException {
+        Sent sent = new Sent();
+        CopyWriter writer = new CopyWriter(sent, 1024, ZoneId.of("America/New_York"));
+
+        writer.row(new Object[]{Timestamp.from(Instant.parse("2015-01-01T00:00:00Z")), Timestamp.from(Instant.parse("2015-07-01T00:00:00.5Z"))});
+        writer.finish();
+
+        assertEquals("2014-12-31T19:00-05:00\t2015-06-30T20:00:00.500-04:00\n", sent.text());
+    }
+
+    @Test
+    public void flushWhenBufferIsFull() throws SQLException {
+        Sent sent = new Sent();
+        CopyWriter writer = new CopyWriter(sent, 16, ZoneOffset.UTC);
+
+        for (int i = 0; i < 10; i++)
+            writer.row(new Object[]{"row", i});
+
+        writer.finish();
+
+        assertEquals(60, sent.bytes.size());
+        assertTrue("Expected several writes of at most 16 bytes but found " + sent.writes, sent.writes >= 4);
+    }
+}
@@ -0,0 +1,84 @@
+package com.fivetran.sql;
+
+import com.fivetran.sql.stream.CloseableStream;
+import com.fivetran.sql.stream.ExternalSort;
+import org.junit.Test;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ExternalSortSpec {
+    private static final ExternalSort.Codec<long[]> PAIRS = new ExternalSort.Codec<long[]>() {
+        @Override
+        public void write(DataOutput out, long[] value) throws IOException {
+            out.writeLong(value[0]);
+            out.writeLong(value[1]);
+        }
+
+        @Override
+        public long[] read(DataInput in) throws IOException {
+            return new long[]{in.readLong(), in.readLong()};
+        }
+    };
+
+    @Test
+    public void sortInRuns() {
+        assertSortsStably(10000, 1000);
+    }
+
+    @Test
+    public void mergeRunsInPasses() {
+        // 1000 runs are merged into 16, then merged with the last run in memory
+        assertSortsStably(10000, 10);
+    }
+
+    private static void assertSortsStably(int size, int maxInMemory) {
+        Random random = new Random(0);
+        List<long[]> input = Stream.generate(() -> new long[]{random.nextInt(100), 0})
+                                   .limit(size)
+                                   .collect(Collectors.toList());
+
+        // Number each element so we can check that equal keys keep their order
+        for (int i = 0; i < input.size(); i++)
+            input.get(i)[1] = i;
+
+        try (Stream<long[]> sorted = ExternalSort.sorted(input.stream(), Comparator.comparingLong(pair -> pair[0]), PAIRS, maxInMemory)) {
+            List<long[]> output = sorted.collect(Collectors.toList());
+
+            assertEquals(input.size(), output.size());
+
+            for (int i = 1; i < output.size(); i++) {
+                long[] before = output.get(i - 1), after = output.get(i);
+
+                assertTrue(before[0] < after[0] || (before[0] == after[0] && before[1] < after[1]));
+            }
+        }
+    }
+
+    @Test
+    public void sortInMemory() {
+        try (Stream<long[]> sorted = ExternalSort.sorted(Stream.of(new long[]{2, 0}, new long[]{1, 0}), Comparator.comparingLong(pair -> pair[0]), PAIRS, 10)) {
+            assertEquals(1, sorted.findFirst().get()[0]);
+        }
+    }
+
+    @Test
+    public void closeInput() {
+        AtomicBoolean closed = new AtomicBoolean(false);
+        CloseableStream<long[]> input = new CloseableStream<>(Stream.of(new long[]{1, 0}), () -> closed.set(true));
+
+        input.sorted(Comparator.comparingLong(pair -> pair[0]), PAIRS, 10).close();
+
+        assertTrue(closed.get());
+    }
+}
@@ -0,0 +1,53 @@
+package com.fivetran.sql;
+
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class InsertRewriteSpec {
+    @Test
+    public void repeatRow() {
+        InsertRewrite rewrite = InsertRewrite.of("INSERT INTO s.t (a, \"B\") VALUES (?, ?)");
+
+        assertEquals(2, rewrite.parametersPerRow());
+        assertEquals("INSERT INTO s.t (a, \"B\") VALUES (?, ?), (?, ?), (?, ?)", rewrite.sql(3));
+    }
+
+    @Test
+    public void onlyPlainInserts() {
+        assertNull(InsertRewrite.of("INSERT INTO t VALUES (?) RETURNING id"));
+        assertNull(InsertRewrite.of("INSERT INTO t VALUES (?) ON CONFLICT (a) DO UPDATE SET a = (1)"));
+        assertNull(InsertRewrite.of("INSERT INTO t SELECT ?"));
+        assertNull(InsertRewrite.of("INSERT INTO t VALUES (?), (?)"));
+        assertNull(InsertRewrite.of("UPDATE t SET a = ?"));
+    }
+
+    @Test
+    public void refuseAnythingButPlaceholdersInTheRow() {
+        assertNull(InsertRewrite.of("INSERT INTO t (id, x) VALUES (?, ?) ON CONFLICT (id) DO UPDATE SET x = (?)"));
+        assertNull(InsertRewrite.of("INSERT INTO t VALUES (?, ?::json)"));
+        assertNull(InsertRewrite.of("INSERT INTO t VALUES (?, '(?')"));
+        assertNull(InsertRewrite.of("INSERT INTO t VALUES (?, DEFAULT)"));
+        assertNull(InsertRewrite.of("INSERT INTO t VALUES ((?), ?)"));
+    }
+
+    @Test
+    public void refuseCommentsAndLiterals() {
+        assertNull(InsertRewrite.of("INSERT INTO t /* VALUES (?) */ VALUES (?)"));
+        assertNull(InsertRewrite.of("INSERT INTO t VALUES (?) -- VALUES (?)"));
+        assertNull(InsertRewrite.of("INSERT INTO t SELECT 'VALUES (?)' VALUES (?)"));
+        assertNull(InsertRewrite.of("INSERT INTO t (a) SELECT ? WHERE 'x' <> 'VALUES' VALUES (?)"));
+    }
+
+    @Test
+    public void powerOfTwoRowsWithinParameterLimit() {
+        InsertRewrite rewrite = InsertRewrite.of("INSERT INTO t VALUES (" + String.join(", ", Collections.nCopies(100, "?")) + ")");
+
+        assertEquals(256, rewrite.rowsPerStatement(100_000));
+        assertEquals(32, rewrite.rowsPerStatement(37));
+        assertEquals(1, rewrite.rowsPerStatement(1));
+    }
+}
@@ -5,11 +5,19 @@ import com.google.common.collect.ImmutableMap;
 import org.junit.Test;
 import org.postgresql.ds.PGSimpleDataSource;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.sql.SQLException;
+import java.time.Duration;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class JsonSpecs {
     private Sql sql() {
@@ -33,4 +41,77 @@ public class JsonSpecs {
             assertEquals(expected, actual);
         }
     }
+
+    public static class Example {
+        public final Map<String, Integer> example;
+
+        public Example(@SqlAttribute("example") Map<String, Integer> example) {
+            this.example = example;
+        }
+    }
+
+    @Test
+    public void coerceJsonToPojo() throws SQLException {
+        try (Stream<Example> example = sql().query("SELECT '{\"a\":1}'::JSON AS example", Example.class)
+                                            .execute()) {
+            assertEquals(ImmutableMap.of("a", 1), example.findFirst().get().example);
+        }
+    }
+
+    @Test
+    public void coerceJsonInParallel() throws SQLException {
+        try (Stream<Example> examples = sql().query("SELECT ('{\"a\":' || i || '}')::JSON AS example FROM generate_series(1, 1000) i", Example.class)
+                                             .parallel(ForkJoinPool.commonPool(), 10, true)
+                                             .execute()) {
+            List<Object> values = examples.map(example -> example.example.get("a")).collect(Collectors.toList());
+
+            assertEquals(IntStream.rangeClosed(1, 1000).boxed().collect(Collectors.toList()), values);
+        }
+    }
+
+    @Test
+    public void coerceJsonInParallelUnordered() throws SQLException {
+        try (Stream<Map> examples = sql().query("SELECT ('{\"a\":' || i || '}')::JSON AS example FROM generate_series(1, 1000) i", Map.class)
+                                         .parallel(ForkJoinPool.commonPool(), 10, false)
+                                         .execute()) {
+            assertEquals(1000, examples.count());
+        }
+    }
+
+    @Test
+    public void writeJsonLines() throws SQLException, IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long rows = sql().query("SELECT i AS id, 'x' || i AS name, ('{\"a\": ' || i || '}')::JSON AS example FROM generate_series(1, 2) i")
+                         .writeJson(out);
+
+        assertEquals(2, rows);
+        assertEquals("{\"id\":1,\"name\":\"x1\",\"example\":{\"a\": 1}}\n" +
+                     "{\"id\":2,\"name\":\"x2\",\"example\":{\"a\": 2}}\n", out.toString("UTF-8"));
+    }
+
+    @Test
+    public void writeCsvQuotesAndNulls() throws SQLException, IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long rows = sql().withFetchSize(2)
+                         .query("SELECT * FROM (VALUES (1, 'row 1', 'a,b'), (2, NULL, 'say \"hi\"'), (3, 'row 3', NULL)) t (id, name, note) ORDER BY id")
+                         .writeCsv(out);
+
+        assertEquals(3, rows);
+        assertEquals("id,name,note\n" +
+                     "1,row 1,\"a,b\"\n" +
+                     "2,,\"say \"\"hi\"\"\"\n" +
+                     "3,row 3,\n", out.toString("UTF-8"));
+    }
+
+    @Test
+    public void writeJsonLinesWithAdaptiveFetchSize() throws SQLException, IOException {
+        AdaptiveFetchSize fetchSizes = new AdaptiveFetchSize(10, 1, 1000, 1_000_000, Duration.ofSeconds(10));
+        long rows = sql().withAdaptiveFetchSize(fetchSizes)
+                         .query("SELECT i AS id FROM generate_series(1, 100) i")
+                         .writeJson(new ByteArrayOutputStream());
+
+        assertEquals(100, rows);
+        assertTrue(fetchSizes.lastBytesPerRow() > 0);
+        assertTrue(fetchSizes.largestFetchSize() > 10);
+    }
 }
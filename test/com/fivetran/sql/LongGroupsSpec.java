@@ -0,0 +1,115 @@
+package com.fivetran.sql;
+
+import com.fivetran.sql.stream.CloseableLongStream;
+import com.fivetran.sql.stream.LongGroups;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.PrimitiveIterator;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LongGroupsSpec {
+    private static long[] keys() {
+        Random random = new Random(0);
+
+        // 0 is a key too
+        return LongStream.generate(() -> random.nextInt(5000)).limit(100000).toArray();
+    }
+
+    @Test
+    public void distinctPastBudget() {
+        long[] keys = keys();
+
+        try (CloseableLongStream distinct = new CloseableLongStream(LongStream.of(keys), () -> {}).distinct(100)) {
+            assertEquals(LongStream.of(keys).distinct().count(), distinct.count());
+        }
+    }
+
+    @Test
+    public void countByPastBudget() {
+        long[] keys = keys();
+        Map<Long, Long> expected = new HashMap<>();
+        Map<Long, Long> actual = new HashMap<>();
+
+        for (long key : keys)
+            expected.merge(key, 1L, Long::sum);
+
+        try (LongGroups counts = new CloseableLongStream(LongStream.of(keys), () -> {}).countBy(100)) {
+            assertTrue(counts.spilled() > 0);
+
+            counts.forEach((key, count) -> assertEquals(null, actual.put(key, count)));
+        }
+
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void sumByInParallel() {
+        Map<Long, Long> actual = new HashMap<>();
+
+        try (LongGroups sums = IntStream.range(0, 100000)
+                                        .boxed()
+                                        .parallel()
+                                        .collect(LongGroups.sumBy(i -> i % 10, i -> i, 5))) {
+            sums.forEach(actual::put);
+        }
+
+        assertEquals(10, actual.size());
+        assertEquals(499950000L, (long) actual.get(0L));
+    }
+
+    @Test
+    public void sumByPastBudget() {
+        long[] keys = keys();
+        Map<Long, Long> expected = new HashMap<>();
+        Map<Long, Long> actual = new HashMap<>();
+
+        for (long key : keys)
+            expected.merge(key, 2 * key, Long::sum);
+
+        try (LongGroups sums = new CloseableLongStream(LongStream.of(keys), () -> {}).sumBy(key -> 2 * key, 100)) {
+            sums.forEach(actual::put);
+        }
+
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void pullKeysPastBudget() {
+        long[] keys = keys();
+        Set<Long> actual = new HashSet<>();
+
+        // Pulling keys one at a time goes through the spliterator's tryAdvance instead of forEachRemaining
+        try (LongGroups counts = new CloseableLongStream(LongStream.of(keys), () -> {}).countBy(10);
+             CloseableLongStream distinct = counts.keys()) {
+            PrimitiveIterator.OfLong it = distinct.iterator();
+
+            while (it.hasNext())
+                assertTrue(actual.add(it.next()));
+        }
+
+        assertEquals(LongStream.of(keys).boxed().collect(Collectors.toSet()), actual);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectTablesTooBigForAnArray() {
+        new LongGroups(Integer.MAX_VALUE);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void readOnce() {
+        try (LongGroups counts = new CloseableLongStream(LongStream.of(keys()), () -> {}).countBy(100)) {
+            counts.forEach((key, count) -> {});
+            counts.keys();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.fivetran.sql;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class RowMapSpec {
+    @Test
+    public void behavesLikeLinkedHashMap() {
+        RowMap.Keys keys = RowMap.Keys.of(new String[]{"id", "name", "missing"});
+        RowMap row = new RowMap(keys, new Object[]{1, "one", null});
+
+        assertEquals(ImmutableMap.of("id", 1, "name", "one"), withoutNulls(row));
+        assertEquals(1, row.get("id"));
+        assertNull(row.get("other"));
+        assertTrue(row.containsKey("missing"));
+        assertFalse(row.containsKey("other"));
+        assertEquals("{id=1, name=one, missing=null}", row.toString());
+
+        Map<String, Object> expected = new LinkedHashMap<>();
+        expected.put("id", 1);
+        expected.put("name", "one");
+        expected.put("missing", null);
+
+        assertEquals(expected, row);
+        assertEquals(expected.hashCode(), row.hashCode());
+    }
+
+    @Test
+    public void repeatedNamesShareOnePosition() {
+        RowMap.Keys keys = RowMap.Keys.of(new String[]{"id", "id", "name"});
+
+        assertEquals(2, keys.size());
+        assertEquals(0, keys.indexOf("id"));
+        assertEquals(1, keys.indexOf("name"));
+    }
+
+    @Test
+    public void findsManyKeys() {
+        String[] names = new String[200];
+
+        for (int i = 0; i < names.length; i++)
+            names[i] = "column_" + i;
+
+        RowMap.Keys keys = RowMap.Keys.of(names);
+
+        for (int i = 0; i < names.length; i++)
+            assertEquals(i, keys.indexOf(new StringBuilder(names[i]).toString()));
+    }
+
+    @Test
+    public void collidingHashCodes() {
+        // "Aa" and "BB" have the same hashCode()
+        RowMap.Keys keys = RowMap.Keys.of(new String[]{"Aa", "BB"});
+
+        assertEquals(0, keys.indexOf("Aa"));
+        assertEquals(1, keys.indexOf("BB"));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void immutable() {
+        RowMap row = new RowMap(RowMap.Keys.of(new String[]{"id"}), new Object[]{1});
+
+        row.put("id", 2);
+    }
+
+    private static Map<String, Object> withoutNulls(Map<String, Object> row) {
+        Map<String, Object> acc = new LinkedHashMap<>();
+
+        row.forEach((key, value) -> {
+            if (value != null)
+                acc.put(key, value);
+        });
+
+        return acc;
+    }
+}
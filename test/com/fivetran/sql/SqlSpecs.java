@@ -1,15 +1,34 @@
 package com.fivetran.sql;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import org.junit.Test;
 import org.postgresql.ds.PGSimpleDataSource;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.sql.BatchUpdateException;
 import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.DoubleStream;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
 import java.util.stream.Stream;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class SqlSpecs {
     private Sql sql() {
@@ -34,4 +53,606 @@ public class SqlSpecs {
 
         assertTrue(isClosed);
     }
+
+    @Test
+    public void metadataIsCachedByText() throws SQLException {
+        Sql sql = sql();
+        String select = "SELECT 1 AS one";
+
+        sql.metadata(select);
+        sql.metadata(new StringBuilder(select).toString());
+
+        assertEquals(1, sql.metadataStats().missCount());
+        assertEquals(1, sql.metadataStats().hitCount());
+
+        sql.invalidateMetadata(select);
+        sql.metadata(select);
+
+        assertEquals(2, sql.metadataStats().missCount());
+    }
+
+    @Test
+    public void schemaVersionRefreshesMetadata() throws SQLException {
+        AtomicLong version = new AtomicLong();
+        Sql sql = sql().withSchemaVersion(version::get);
+
+        sql.metadata("SELECT 1 AS one");
+        version.incrementAndGet();
+        sql.metadata("SELECT 1 AS one");
+
+        assertEquals(2, sql.metadataStats().missCount());
+    }
+
+    @Test
+    public void parsedSqlIsCachedByText() throws SQLException {
+        String select = "SELECT * FROM t WHERE id = :id AND name = :name";
+        long hits = Sql.parsedSqlStats().hitCount();
+
+        sql().query(select);
+        sql().query(new StringBuilder(select).toString());
+
+        assertTrue(Sql.parsedSqlStats().hitCount() > hits);
+    }
+
+    @Test
+    public void parameterTypesAreCached() throws SQLException {
+        Sql sql = sql();
+        Sql.Query<Map> query = sql.query("SELECT :value::int AS value", Map.class);
+
+        for (int i = 0; i < 2; i++) {
+            try (Stream<Map> rows = query.put("value", i).execute()) {
+                assertEquals(ImmutableMap.of("value", i), rows.findFirst().get());
+            }
+        }
+
+        assertEquals(1, sql.parameterMetadataStats().missCount());
+        assertEquals(1, sql.parameterMetadataStats().hitCount());
+    }
+
+    @Test
+    public void streamThroughCursor() throws SQLException {
+        try (Stream<Map> rows = sql().withFetchSize(3)
+                                     .query("SELECT generate_series(1, 10) AS i", Map.class)
+                                     .execute()) {
+            assertEquals(10, rows.count());
+        }
+    }
+
+    @Test
+    public void prefetchRows() throws SQLException {
+        try (Stream<Map> rows = sql().withFetchSize(100)
+                                     .query("SELECT generate_series(1, 1000) AS i", Map.class)
+                                     .prefetch(10)
+                                     .execute()) {
+            assertEquals(1000, rows.count());
+        }
+    }
+
+    @Test
+    public void closePrefetchEarly() throws SQLException {
+        try (Stream<Map> rows = sql().withFetchSize(100)
+                                     .query("SELECT generate_series(1, 100000) AS i", Map.class)
+                                     .prefetch(10)
+                                     .execute()) {
+            assertEquals(ImmutableMap.of("i", 1), rows.findFirst().get());
+        }
+    }
+
+    @Test
+    public void readPartitionsInParallel() throws SQLException {
+        try (Stream<Map> rows = sql().query("SELECT i FROM generate_series(?::BIGINT, ?::BIGINT - 1) i", Map.class)
+                                     .executePartitioned(Sql.keyRanges(0, 1000, 8))) {
+            List<Object> values = rows.map(row -> row.get("i")).collect(Collectors.toList());
+
+            assertEquals(LongStream.range(0, 1000).boxed().collect(Collectors.toList()), values);
+        }
+    }
+
+    @Test
+    public void workersShareSnapshot() throws SQLException {
+        try (Sql.Snapshot snapshot = sql().exportSnapshot()) {
+            Sql workers = snapshot.sql();
+
+            try (Stream<Map> first = workers.query("SELECT txid_current_snapshot()::TEXT AS s", Map.class).execute();
+                 Stream<Map> second = workers.query("SELECT txid_current_snapshot()::TEXT AS s", Map.class).execute()) {
+                assertEquals(first.findFirst().get(), second.findFirst().get());
+            }
+        }
+    }
+
+    @Test
+    public void transactionSharesConnection() throws SQLException {
+        long count = sql().transaction(transaction -> {
+            transaction.statement("CREATE TEMPORARY TABLE transaction_test (id INT) ON COMMIT DROP").execute();
+            transaction.statement("INSERT INTO transaction_test VALUES (1), (2)").execute();
+
+            try (Stream<Map> rows = transaction.query("SELECT id FROM transaction_test", Map.class).execute()) {
+                return rows.count();
+            }
+        });
+
+        assertEquals(2, count);
+    }
+
+    @Test
+    public void transactionIsolation() throws SQLException {
+        Object isolation = sql().transaction(Sql.Isolation.SERIALIZABLE, transaction -> {
+            try (Stream<Map> rows = transaction.query("SELECT current_setting('transaction_isolation') AS isolation", Map.class).execute()) {
+                return rows.findFirst().get().get("isolation");
+            }
+        });
+
+        assertEquals("serializable", isolation);
+    }
+
+    @Test
+    public void transactionRollsBackOnFailure() throws SQLException {
+        sql().statement("CREATE TABLE rollback_test (id INT)").execute();
+
+        try {
+            try {
+                sql().transaction(transaction -> {
+                    transaction.statement("INSERT INTO rollback_test VALUES (1)").execute();
+
+                    return transaction.statement("SELECT 1 / 0").execute();
+                });
+
+                fail("Expected division by zero");
+            } catch (SQLException e) {
+                // Expected
+            }
+
+            // A new connection doesn't see the row
+            try (Stream<Map> rows = sql().query("SELECT id FROM rollback_test", Map.class).execute()) {
+                assertEquals(0, rows.count());
+            }
+        } finally {
+            sql().statement("DROP TABLE rollback_test").execute();
+        }
+    }
+
+    @Test
+    public void batchFlushesNamedParameters() throws SQLException {
+        long count = sql().transaction(transaction -> {
+            transaction.statement("CREATE TEMPORARY TABLE batch_test (id INT, name TEXT) ON COMMIT DROP").execute();
+
+            try (Sql.Batch batch = transaction.statement("INSERT INTO batch_test VALUES (:id, :name)").batch(2, 0)) {
+                for (int i = 0; i < 5; i++)
+                    batch.put("id", i).put("name", "row " + i).add();
+
+                assertEquals(5, batch.execute().length);
+
+                batch.add(ImmutableMap.of("id", 5, "name", "row 5"));
+
+                assertEquals(1, batch.execute().length);
+            }
+
+            try (Stream<Map> rows = transaction.query("SELECT id FROM batch_test", Map.class).execute()) {
+                return rows.count();
+            }
+        });
+
+        assertEquals(6, count);
+    }
+
+    @Test
+    public void batchRewritesInserts() throws SQLException {
+        long count = sql().transaction(transaction -> {
+            transaction.statement("CREATE TEMPORARY TABLE rewrite_test (id INT) ON COMMIT DROP").execute();
+
+            try (Sql.Batch batch = transaction.statement("INSERT INTO rewrite_test VALUES (?)").batch(0, 0, true)) {
+                for (int i = 0; i < 1500; i++)
+                    batch.add(i);
+
+                int[] counts = batch.execute();
+
+                assertEquals(1500, counts.length);
+                assertEquals(1, counts[1499]);
+            }
+
+            try (Stream<Map> rows = transaction.query("SELECT id FROM rewrite_test", Map.class).execute()) {
+                return rows.count();
+            }
+        });
+
+        assertEquals(1500, count);
+    }
+
+    @Test
+    public void rewrittenInsertsReportRowsBeforeFailure() throws SQLException {
+        try {
+            sql().transaction(transaction -> {
+                transaction.statement("CREATE TEMPORARY TABLE rewrite_test (id INT CHECK (id < 1100)) ON COMMIT DROP").execute();
+
+                try (Sql.Batch batch = transaction.statement("INSERT INTO rewrite_test VALUES (?)").batch(0, 0, true)) {
+                    for (int i = 0; i < 1500; i++)
+                        batch.add(i);
+
+                    return batch.execute();
+                }
+            });
+
+            fail("Expected the second chunk to fail");
+        } catch (BatchUpdateException e) {
+            // The first 1024 rows are one INSERT, the next 256 fail the check
+            assertEquals(1024, e.getUpdateCounts().length);
+        }
+    }
+
+    @Test
+    public void rewrittenInsertsRollBackUnderAutoCommit() throws SQLException {
+        sql().statement("CREATE TABLE rewrite_autocommit_test (id INT CHECK (id < 1100))").execute();
+
+        try {
+            try (Sql.Batch batch = sql().statement("INSERT INTO rewrite_autocommit_test VALUES (?)").batch(0, 0, true)) {
+                for (int i = 0; i < 1500; i++)
+                    batch.add(i);
+
+                batch.execute();
+
+                fail("Expected the second chunk to fail");
+            } catch (BatchUpdateException e) {
+                // The flush was one transaction, so the first chunk was rolled back with the second
+                assertEquals(0, e.getUpdateCounts().length);
+            }
+
+            try (Stream<Map> rows = sql().query("SELECT id FROM rewrite_autocommit_test", Map.class).execute()) {
+                assertEquals(0, rows.count());
+            }
+        } finally {
+            sql().statement("DROP TABLE rewrite_autocommit_test").execute();
+        }
+    }
+
+    @Test
+    public void copyInMaps() throws SQLException {
+        long count = sql().transaction(transaction -> {
+            transaction.statement("CREATE TEMPORARY TABLE copy_test (id INT, name TEXT, created TIMESTAMPTZ) ON COMMIT DROP").execute();
+
+            List<Map<String, Object>> rows = IntStream.range(0, 1000)
+                                                      .mapToObj(i -> ImmutableMap.<String, Object>of("id", i, "name", "row\t" + i, "created", Instant.EPOCH))
+                                                      .collect(Collectors.toList());
+
+            assertEquals(1000, transaction.copyIn("copy_test", ImmutableList.of("id", "name", "created"), rows.iterator()));
+
+            try (Stream<Map> loaded = transaction.query("SELECT name FROM copy_test WHERE id = 7", Map.class).execute()) {
+                assertEquals("row\t7", loaded.findFirst().get().get("name"));
+            }
+
+            try (Stream<Map> loaded = transaction.query("SELECT id FROM copy_test", Map.class).execute()) {
+                return loaded.count();
+            }
+        });
+
+        assertEquals(1000, count);
+    }
+
+    @Test
+    public void copyInNulls() throws SQLException {
+        long count = sql().transaction(transaction -> {
+            transaction.statement("CREATE TEMPORARY TABLE copy_nulls (id INT, day DATE, created TIMESTAMPTZ, tags TEXT[], doc JSON) ON COMMIT DROP").execute();
+
+            Map<String, Object> explicit = new HashMap<>();
+
+            explicit.put("id", 1);
+            explicit.put("day", null);
+            explicit.put("created", null);
+            explicit.put("tags", null);
+            explicit.put("doc", null);
+
+            List<Map<String, Object>> rows = ImmutableList.of(explicit, ImmutableMap.of("id", 2));
+
+            assertEquals(2, transaction.copyIn("copy_nulls", ImmutableList.of("id", "day", "created", "tags", "doc"), rows.iterator()));
+            assertEquals(1, transaction.copyIn("copy_nulls", CopyNulls.class, Stream.of(new CopyNulls())));
+
+            try (Stream<Map> loaded = transaction.query("SELECT id FROM copy_nulls WHERE day IS NULL AND created IS NULL AND tags IS NULL AND doc IS NULL", Map.class)
+                                                 .execute()) {
+                return loaded.count();
+            }
+        });
+
+        assertEquals(3, count);
+    }
+
+    @Test
+    public void copyInTimestampsLikeInsert() throws SQLException {
+        TimeZone original = TimeZone.getDefault();
+
+        TimeZone.setDefault(TimeZone.getTimeZone("America/New_York"));
+
+        try {
+            long distinct = sql().transaction(transaction -> {
+                transaction.statement("CREATE TEMPORARY TABLE copy_timestamps (created TIMESTAMP) ON COMMIT DROP").execute();
+
+                Instant created = Instant.parse("2015-01-01T00:00:00Z");
+                List<Map<String, Object>> rows = ImmutableList.of(ImmutableMap.of("created", created));
+
+                transaction.statement("INSERT INTO copy_timestamps VALUES (?)").execute(created);
+                transaction.copyIn("copy_timestamps", ImmutableList.of("created"), rows.iterator());
+
+                try (Stream<Map> loaded = transaction.query("SELECT DISTINCT created FROM copy_timestamps", Map.class).execute()) {
+                    return loaded.count();
+                }
+            });
+
+            assertEquals(1, distinct);
+        } finally {
+            TimeZone.setDefault(original);
+        }
+    }
+
+    public static class CopyNulls {
+        public int id = 3;
+        public LocalDate day;
+        public Instant created;
+        public List<String> tags;
+        public JsonNode doc;
+    }
+
+    @Test
+    public void pojoPrimitivesAndBoxes() throws SQLException, IOException {
+        String select = "SELECT i AS id, i::BIGINT * 10 AS total, CASE WHEN i = 1 THEN NULL ELSE i END AS score, " +
+                        "CASE WHEN i = 1 THEN NULL ELSE i / 2.0::FLOAT8 END AS ratio, i = 1 AS flag " +
+                        "FROM generate_series(1, 2) i ORDER BY i";
+        List<Numbers> expected = ImmutableList.of(new Numbers(1, 10, null, null, true), new Numbers(2, 20, 2, 1.0, false));
+
+        // Read straight from the ResultSet by the compiled mapper
+        try (Stream<Numbers> rows = sql().query(select, Numbers.class).execute()) {
+            assertEquals(expected, rows.collect(Collectors.toList()));
+        }
+
+        // Copied into boxed values, then unboxed by the spreader
+        try (Materialized<Numbers> rows = sql().query(select, Numbers.class).materialize();
+             Stream<Numbers> replayed = rows.stream()) {
+            assertEquals(expected, replayed.collect(Collectors.toList()));
+        }
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void pojoPrimitiveRejectsNull() throws SQLException {
+        try (Stream<Numbers> rows = sql().query("SELECT NULL::INT AS id, 1::BIGINT AS total, 1 AS score, 1.0::FLOAT8 AS ratio, true AS flag", Numbers.class)
+                                         .execute()) {
+            rows.collect(Collectors.toList());
+        }
+    }
+
+    public static class Numbers {
+        public final int id;
+        public final long total;
+        public final Integer score;
+        public final Double ratio;
+        public final boolean flag;
+
+        public Numbers(@SqlAttribute("id") int id,
+                       @SqlAttribute("total") long total,
+                       @SqlAttribute("score") Integer score,
+                       @SqlAttribute("ratio") Double ratio,
+                       @SqlAttribute("flag") boolean flag) {
+            this.id = id;
+            this.total = total;
+            this.score = score;
+            this.ratio = ratio;
+            this.flag = flag;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            Numbers numbers = (Numbers) o;
+
+            return id == numbers.id
+                   && total == numbers.total
+                   && flag == numbers.flag
+                   && Objects.equals(score, numbers.score)
+                   && Objects.equals(ratio, numbers.ratio);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(id, total, score, ratio, flag);
+        }
+
+        @Override
+        public String toString() {
+            return "Numbers{" +
+                   "id=" + id +
+                   ", total=" + total +
+                   ", score=" + score +
+                   ", ratio=" + ratio +
+                   ", flag=" + flag +
+                   '}';
+        }
+    }
+
+    @Test
+    public void copyOutCsv() throws SQLException, IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CopyResult copied = sql().copyOut("SELECT i, 'row ' || i AS name FROM generate_series(1, 3) i", CopyFormat.CSV_HEADER, out);
+
+        assertEquals("i,name\n1,row 1\n2,row 2\n3,row 3\n", out.toString("UTF-8"));
+        assertEquals(3, copied.rows);
+        assertEquals(out.size(), copied.bytes);
+    }
+
+    @Test
+    public void writeCsv() throws SQLException, IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long rows = sql().withFetchSize(2)
+                         .query("SELECT i, 'row ' || i AS name FROM generate_series(1, 3) i", Map.class)
+                         .writeCsv(out);
+
+        assertEquals("i,name\n1,row 1\n2,row 2\n3,row 3\n", out.toString("UTF-8"));
+        assertEquals(3, rows);
+    }
+
+    @Test
+    public void queryPrimitives() throws SQLException {
+        try (LongStream ids = sql().withFetchSize(100).queryLongs("SELECT i::BIGINT FROM generate_series(1, 1000) i").execute()) {
+            assertEquals(500500, ids.sum());
+        }
+
+        try (IntStream ids = sql().queryInts("SELECT i FROM generate_series(1, ?) i").execute(3)) {
+            assertArrayEquals(new int[]{1, 2, 3}, ids.toArray());
+        }
+
+        try (DoubleStream halves = sql().queryDoubles("SELECT i / 2.0 FROM generate_series(1, 2) i").execute()) {
+            assertArrayEquals(new double[]{0.5, 1.0}, halves.toArray(), 0);
+        }
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void queryPrimitivesRejectsNull() throws SQLException {
+        try (LongStream ids = sql().queryLongs("SELECT NULL::BIGINT").execute()) {
+            ids.sum();
+        }
+    }
+
+    @Test
+    public void readColumnBatches() throws SQLException {
+        long sum = 0, nulls = 0, names = 0;
+        int batches = 0;
+
+        try (Stream<ColumnBatch> rows = sql().withFetchSize(100)
+                                             .query("SELECT i::BIGINT AS id, CASE WHEN i % 10 = 0 THEN NULL ELSE 'row ' || i END AS name FROM generate_series(1, 1000) i", Map.class)
+                                             .executeBatches(64)) {
+            for (ColumnBatch batch : (Iterable<ColumnBatch>) rows::iterator) {
+                ColumnBatch.Longs ids = batch.longs(batch.indexOf("id"));
+                ColumnBatch.Text text = batch.text(batch.indexOf("name"));
+
+                for (int row = 0; row < batch.size(); row++) {
+                    sum += ids.get(row);
+
+                    if (text.isNull(row))
+                        nulls++;
+                    else if (text.equals(row, "row " + ids.get(row)))
+                        names++;
+                }
+
+                batches++;
+            }
+        }
+
+        assertEquals(500500, sum);
+        assertEquals(100, nulls);
+        assertEquals(900, names);
+        assertEquals(16, batches);
+    }
+
+    @Test
+    public void replayMaterializedRows() throws SQLException, IOException {
+        try (Materialized<Map> rows = sql().query("SELECT i AS id, 'row ' || i AS name FROM generate_series(1, 10000) i", Map.class)
+                                           .materialize()) {
+            assertEquals(10000, rows.size());
+
+            try (Stream<Map> sequential = rows.stream()) {
+                assertEquals(ImmutableMap.of("id", 1, "name", "row 1"), sequential.findFirst().get());
+            }
+
+            try (Stream<Map> parallel = rows.stream().parallel()) {
+                assertEquals(50005000, parallel.mapToInt(row -> (Integer) row.get("id")).sum());
+            }
+        }
+    }
+
+    @Test
+    public void spillMaterializedRows() throws SQLException, IOException {
+        try (Materialized<Map> rows = sql().withMaterializeBudget(Materialized.CHUNK_SIZE)
+                                           .query("SELECT i AS id, repeat('x', 100) AS padding FROM generate_series(1, 100000) i", Map.class)
+                                           .materialize()) {
+            assertTrue(rows.spilled() > 0);
+            assertTrue(rows.bytes() - rows.spilled() <= Materialized.CHUNK_SIZE);
+
+            try (Stream<Map> parallel = rows.stream().parallel()) {
+                assertEquals(5000050000L, parallel.mapToLong(row -> (Integer) row.get("id")).sum());
+            }
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void closedMaterializedRows() throws SQLException, IOException {
+        Materialized<Map> rows = sql().query("SELECT 1 AS id", Map.class).materialize();
+
+        rows.close();
+        rows.stream();
+    }
+
+    @Test
+    public void materializeGeneratedKeys() throws SQLException, IOException {
+        sql().statement("CREATE TABLE generated_keys_test (id BIGSERIAL, name TEXT)").execute();
+
+        try (Materialized<Long> keys = sql().statement("INSERT INTO generated_keys_test (name) VALUES ('a'), ('b'), ('c')")
+                                            .returnGeneratedKeys(Long.class)
+                                            .materialize()) {
+            assertEquals(3, keys.size());
+
+            try (Stream<Long> ids = keys.stream()) {
+                assertEquals(ImmutableList.of(1L, 2L, 3L), ids.collect(Collectors.toList()));
+            }
+        } finally {
+            sql().statement("DROP TABLE generated_keys_test").execute();
+        }
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void prefetchGeneratedKeys() throws SQLException {
+        sql().statement("INSERT INTO t (name) VALUES ('x')").returnGeneratedKeys(Long.class).prefetch(10);
+    }
+
+    @Test
+    public void splitKeyRanges() {
+        List<Object[]> ranges = Sql.keyRanges(0, 10, 4);
+
+        assertEquals(4, ranges.size());
+        assertArrayEquals(new Object[]{0L, 2L}, ranges.get(0));
+        assertArrayEquals(new Object[]{7L, 10L}, ranges.get(3));
+        assertEquals(2, Sql.keyRanges(0, 2, 4).size());
+    }
+
+    @Test
+    public void splitKeyRangesAtExtremes() {
+        assertContiguous(Sql.keyRanges(Long.MIN_VALUE, Long.MAX_VALUE, 4), Long.MIN_VALUE, Long.MAX_VALUE, 4);
+        assertContiguous(Sql.keyRanges(0, Long.MAX_VALUE, 4), 0, Long.MAX_VALUE, 4);
+        assertContiguous(Sql.keyRanges(Long.MIN_VALUE, 0, 3), Long.MIN_VALUE, 0, 3);
+        assertContiguous(Sql.keyRanges(Long.MAX_VALUE - 2, Long.MAX_VALUE, 4), Long.MAX_VALUE - 2, Long.MAX_VALUE, 2);
+    }
+
+    private static void assertContiguous(List<Object[]> ranges, long from, long to, int n) {
+        assertEquals(n, ranges.size());
+        assertEquals(from, ranges.get(0)[0]);
+        assertEquals(to, ranges.get(n - 1)[1]);
+
+        for (int i = 0; i < n; i++) {
+            long lower = (Long) ranges.get(i)[0], upper = (Long) ranges.get(i)[1];
+
+            assertTrue(lower < upper);
+
+            if (i > 0)
+                assertEquals(ranges.get(i - 1)[1], lower);
+        }
+    }
+
+    @Test
+    public void queryFetchSizeOverridesSql() throws SQLException {
+        try (Stream<Map> rows = sql().query("SELECT generate_series(1, 10) AS i", Map.class)
+                                     .withFetchSize(4)
+                                     .execute()) {
+            assertEquals(ImmutableMap.of("i", 1), rows.findFirst().get());
+        }
+    }
+
+    @Test
+    public void adaptFetchSizeToRowWidth() throws SQLException {
+        AdaptiveFetchSize fetchSizes = new AdaptiveFetchSize(100, 10, 100_000, 1_000_000, Duration.ofSeconds(10));
+
+        try (Stream<Map> rows = sql().withAdaptiveFetchSize(fetchSizes)
+                                     .query("SELECT generate_series(1, 5000) AS i", Map.class)
+                                     .execute()) {
+            assertEquals(5000, rows.count());
+        }
+
+        assertTrue(fetchSizes.adjustments() > 0);
+        assertTrue(fetchSizes.lastFetchSize() > 100);
+    }
 }
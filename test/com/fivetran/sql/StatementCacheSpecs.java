@@ -0,0 +1,64 @@
+package com.fivetran.sql;
+
+import org.junit.Test;
+
+import java.sql.*;
+
+import static org.junit.Assert.*;
+
+public class StatementCacheSpecs {
+
+    @Test
+    public void reuseReleasedStatement() throws SQLException {
+        StatementCache cache = new StatementCache(10);
+
+        try (Connection connection = DriverManager.getConnection("jdbc:postgresql://localhost/testdb")) {
+            PreparedStatement first = cache.prepare(connection, JDBC.SELECT_1);
+            cache.release(JDBC.SELECT_1, first);
+
+            PreparedStatement second = cache.prepare(connection, JDBC.SELECT_1);
+
+            assertSame(first, second);
+            assertEquals(1, cache.stats().hitCount());
+            assertEquals(1, cache.stats().missCount());
+
+            try (ResultSet resultSet = second.executeQuery()) {
+                resultSet.next();
+                assertEquals(1, resultSet.getInt(1));
+            }
+
+            cache.release(JDBC.SELECT_1, second);
+        }
+    }
+
+    @Test
+    public void evictLeastRecentlyUsed() throws SQLException {
+        StatementCache cache = new StatementCache(1);
+
+        try (Connection connection = DriverManager.getConnection("jdbc:postgresql://localhost/testdb")) {
+            PreparedStatement one = cache.prepare(connection, "SELECT 1");
+            PreparedStatement two = cache.prepare(connection, "SELECT 2");
+
+            cache.release("SELECT 1", one);
+            cache.release("SELECT 2", two);
+
+            assertTrue(one.isClosed());
+            assertFalse(two.isClosed());
+            assertEquals(1, cache.stats().evictionCount());
+        }
+    }
+
+    @Test
+    public void releaseClosedStatement() throws SQLException {
+        StatementCache cache = new StatementCache(10);
+
+        try (Connection connection = DriverManager.getConnection("jdbc:postgresql://localhost/testdb")) {
+            PreparedStatement statement = cache.prepare(connection, JDBC.SELECT_1);
+
+            statement.close();
+            cache.release(JDBC.SELECT_1, statement);
+
+            assertNotSame(statement, cache.prepare(connection, JDBC.SELECT_1));
+        }
+    }
+}